@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+/**
+ * How deep a mod is analyzed; each level does everything the ones before
+ * it do, and none of the work of the ones after it.
+ */
+public enum AnalysisLevel {
+    /** The manifest and mcmod.info (also of nested jars) only; classes are not even inflated. */
+    INVENTORY("inventory"),
+    /** Classes are parsed for @Mod annotations and BaseMod superclasses, skipping method code. */
+    ANNOTATIONS("annotations"),
+    /** Method code is scanned too, to guess Minecraft versions from MCP mappings. */
+    HEURISTICS("heuristics"),
+    /** The mod's SHA256 hash is generated as well. */
+    HASH("hash");
+
+    private final String id;
+
+    AnalysisLevel(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The level with this ID, or null if there is none.
+     */
+    public static AnalysisLevel fromId(String id) {
+        for (AnalysisLevel level : values()) {
+            if (level.id.equals(id)) {
+                return level;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+/**
+ * Thrown from inside an analysis once one of its AnalysisLimits is hit.
+ * Unchecked, as it also has to get out of ASM visitors.
+ */
+public class AnalysisLimitException extends RuntimeException {
+    public enum Limit {
+        INFLATED_BYTES("inflatedBytes"),
+        NESTING_DEPTH("nestingDepth"),
+        ENTRIES("entries"),
+        TIME("time");
+
+        private final String id;
+
+        Limit(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Limit limit;
+
+    public AnalysisLimitException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+/**
+ * Per-jar resource limits for ModAnalyzer. A value of 0 disables the given
+ * limit. Byte and entry counts are totals over the jar and every jar nested
+ * inside it.
+ */
+public class AnalysisLimits {
+    private long maxInflatedBytes = 1024L * 1024 * 1024;
+    private int maxNestingDepth = 3;
+    private int maxEntries = 100000;
+    private long maxMillis = 5 * 60 * 1000;
+
+    public AnalysisLimits() {
+
+    }
+
+    public static AnalysisLimits unlimited() {
+        return new AnalysisLimits().setMaxInflatedBytes(0).setMaxNestingDepth(0).setMaxEntries(0).setMaxMillis(0);
+    }
+
+    public AnalysisLimits setMaxInflatedBytes(long bytes) {
+        maxInflatedBytes = bytes;
+        return this;
+    }
+
+    public AnalysisLimits setMaxNestingDepth(int depth) {
+        maxNestingDepth = depth;
+        return this;
+    }
+
+    public AnalysisLimits setMaxEntries(int entries) {
+        maxEntries = entries;
+        return this;
+    }
+
+    public AnalysisLimits setMaxMillis(long millis) {
+        maxMillis = millis;
+        return this;
+    }
+
+    public long getMaxInflatedBytes() {
+        return maxInflatedBytes;
+    }
+
+    public int getMaxNestingDepth() {
+        return maxNestingDepth;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import pl.asie.modalyze.similarity.SimilarityIndex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Non-blocking entry point for embedding Modalyzer. Every analysis runs on
+ * the executor given by the caller; results are handed back as futures, or
+ * as a lazy stream for whole directories.
+ */
+public class AsyncModAnalyzer {
+    private final Executor executor;
+    private boolean versionHeuristics = true, generateHash, generateSignature, storeFilenames = true;
+    private AnalysisLevel level = AnalysisLevel.HEURISTICS;
+    private SimilarityIndex similarityIndex;
+    private AnalysisLimits limits = new AnalysisLimits();
+    private ScanStatistics statistics;
+    private Executor classExecutor;
+    private long splitThreshold = 16 * 1024 * 1024;
+    private int maxInFlight;
+
+    /**
+     * @param executor The executor analyses run on.
+     * @param maxInFlight How many analyses stream() keeps running ahead of the
+     *                    consumer; this bounds its memory use.
+     */
+    public AsyncModAnalyzer(Executor executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public AsyncModAnalyzer(Executor executor) {
+        this(executor, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @see ModAnalyzer#setLevel(AnalysisLevel)
+     */
+    public AsyncModAnalyzer setLevel(AnalysisLevel l) {
+        level = l;
+        versionHeuristics = l.compareTo(AnalysisLevel.HEURISTICS) >= 0;
+        generateHash = l == AnalysisLevel.HASH;
+        return this;
+    }
+
+    public AsyncModAnalyzer setVersionHeuristics(boolean v) {
+        versionHeuristics = v;
+        return this;
+    }
+
+    public AsyncModAnalyzer setGenerateHash(boolean gh) {
+        generateHash = gh;
+        return this;
+    }
+
+    public AsyncModAnalyzer setGenerateSignature(boolean gs) {
+        generateSignature = gs;
+        return this;
+    }
+
+    /**
+     * @see ModAnalyzer#setSimilarityIndex(SimilarityIndex)
+     */
+    public AsyncModAnalyzer setSimilarityIndex(SimilarityIndex index) {
+        similarityIndex = index;
+        return this;
+    }
+
+    public AsyncModAnalyzer setStoreFilenames(boolean sf) {
+        storeFilenames = sf;
+        return this;
+    }
+
+    public AsyncModAnalyzer setLimits(AnalysisLimits l) {
+        limits = l;
+        return this;
+    }
+
+    public AsyncModAnalyzer setStatistics(ScanStatistics s) {
+        statistics = s;
+        return this;
+    }
+
+    /**
+     * @see ModAnalyzer#setClassExecutor(Executor)
+     */
+    public AsyncModAnalyzer setClassExecutor(Executor e) {
+        classExecutor = e;
+        return this;
+    }
+
+    public AsyncModAnalyzer setSplitThreshold(long bytes) {
+        splitThreshold = bytes;
+        return this;
+    }
+
+    private ModAnalyzer createAnalyzer(Path path) {
+        return new ModAnalyzer(path != null ? path.toFile() : null)
+                .setLevel(level)
+                .setVersionHeuristics(versionHeuristics)
+                .setGenerateHash(generateHash)
+                .setGenerateSignature(generateSignature)
+                .setSimilarityIndex(similarityIndex)
+                .setStoreFilenames(storeFilenames)
+                .setLimits(limits)
+                .setStatistics(statistics)
+                .setClassExecutor(classExecutor)
+                .setSplitThreshold(splitThreshold);
+    }
+
+    /**
+     * @return A future completing with the mod's metadata, or null if the file
+     * could not be read as a ZIP.
+     */
+    public CompletableFuture<ModMetadata> analyze(final Path path) {
+        return CompletableFuture.supplyAsync(new Supplier<ModMetadata>() {
+            @Override
+            public ModMetadata get() {
+                return createAnalyzer(path).analyze();
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<ModMetadata> analyze(String name, byte[] data) {
+        return analyze(name, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * The buffer is read between its position and limit, which are left
+     * untouched; it must not be modified until the future completes.
+     */
+    public CompletableFuture<ModMetadata> analyze(final String name, final ByteBuffer data) {
+        return CompletableFuture.supplyAsync(new Supplier<ModMetadata>() {
+            @Override
+            public ModMetadata get() {
+                return createAnalyzer(null).setName(name).analyze(data);
+            }
+        }, executor);
+    }
+
+    /**
+     * Analyzes a mod whose data is only fetched once a worker picks it up,
+     * such as an entry of a modpack archive.
+     */
+    public CompletableFuture<ModMetadata> analyze(final String name, final Supplier<ByteBuffer> data) {
+        return CompletableFuture.supplyAsync(new Supplier<ModMetadata>() {
+            @Override
+            public ModMetadata get() {
+                ByteBuffer buffer;
+                try {
+                    buffer = data.get();
+                } catch (AnalysisLimitException e) {
+                    return ModAnalyzer.createLimitResult(name, e);
+                } catch (UncheckedIOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+                return createAnalyzer(null).setName(name).analyze(buffer);
+            }
+        }, executor);
+    }
+
+    /**
+     * Lazily analyzes every ZIP file under a directory. Files are only
+     * enumerated and submitted as the stream is consumed, with at most
+     * maxInFlight analyses running ahead of the consumer; results come out
+     * in enumeration order. Files which do not start like a ZIP are never
+     * analyzed, and jars which turn out not to be mods are skipped, unless
+     * their analysis hit a limit. The stream should be closed, which also
+     * cancels analyses that were not consumed.
+     */
+    public Stream<ModMetadata> stream(Path dir) throws IOException {
+        final Stream<Path> paths = Files.walk(dir).filter(new Predicate<Path>() {
+            @Override
+            public boolean test(Path path) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    return attrs.isRegularFile() && !ModpackArchive.isTar(path.getFileName().toString().toLowerCase(Locale.ROOT))
+                            && InputEnumerator.hasModMagic(path, attrs);
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        });
+        final ResultIterator iterator = new ResultIterator(paths.iterator());
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        iterator.cancel();
+                        paths.close();
+                    }
+                });
+    }
+
+    private class ResultIterator implements Iterator<ModMetadata> {
+        private final Iterator<Path> paths;
+        private final Deque<CompletableFuture<ModMetadata>> window = new ArrayDeque<>();
+        private final Deque<Path> windowPaths = new ArrayDeque<>();
+        private ModMetadata next;
+
+        ResultIterator(Iterator<Path> paths) {
+            this.paths = paths;
+        }
+
+        private void fill() {
+            try {
+                while (window.size() < maxInFlight && paths.hasNext()) {
+                    Path path = paths.next();
+                    window.add(analyze(path));
+                    windowPaths.add(path);
+                }
+            } catch (UncheckedIOException e) {
+                // Files.walk failed on a directory mid-way; stop enumerating, but keep what is in flight.
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                fill();
+                if (window.isEmpty()) {
+                    return false;
+                }
+                Path path = windowPaths.poll();
+                try {
+                    next = window.poll().join();
+                    if (next != null && !next.valid && next.incomplete == null) {
+                        // not a mod, nor one whose analysis was cut short
+                        next = null;
+                    }
+                } catch (CompletionException e) {
+                    // Skip the jar, as if it could not be read.
+                    System.err.println("[ERROR] Could not analyze " + path + "!");
+                    e.getCause().printStackTrace();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public ModMetadata next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ModMetadata result = next;
+            next = null;
+            return result;
+        }
+
+        void cancel() {
+            for (CompletableFuture<ModMetadata> future : window) {
+                future.cancel(false);
+            }
+            window.clear();
+            windowPaths.clear();
+        }
+    }
+}
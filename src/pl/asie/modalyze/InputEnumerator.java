@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Finds the files to analyze. Directories are walked with their attributes
+ * read in bulk, and files which do not start with a ZIP local file header
+ * (or are not tar archives) are left out without being opened as a ZIP.
+ * Include and exclude globs are matched against both the path relative to
+ * the directory being walked and the file name.
+ *
+ * Inputs can also be read from a list file or stdin, one path per line; the
+ * paths are passed on as they are read.
+ */
+public class InputEnumerator {
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private Consumer<String> remoteSink;
+
+    public InputEnumerator() {
+
+    }
+
+    public InputEnumerator addInclude(String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        return this;
+    }
+
+    public InputEnumerator addExclude(String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        return this;
+    }
+
+    /**
+     * @param sink Receives http:// and https:// URLs, which are otherwise
+     *             warned about and left out.
+     */
+    public InputEnumerator setRemoteSink(Consumer<String> sink) {
+        remoteSink = sink;
+        return this;
+    }
+
+    public static boolean isRemote(String input) {
+        return input.startsWith("http://") || input.startsWith("https://");
+    }
+
+    /**
+     * @param input A file, directory or URL, "@file" for a list of them or "-" for stdin.
+     */
+    public void enumerate(String input, Consumer<Path> sink) throws IOException {
+        if (isRemote(input)) {
+            if (remoteSink != null) {
+                remoteSink.accept(input);
+            } else {
+                System.err.println("[WARN] Remote input not supported here: " + input);
+            }
+        } else if (input.equals("-")) {
+            enumerate(System.in, sink);
+        } else if (input.startsWith("@")) {
+            try (InputStream stream = Files.newInputStream(Paths.get(input.substring(1)))) {
+                enumerate(stream, sink);
+            }
+        } else {
+            walk(Paths.get(input), sink);
+        }
+    }
+
+    /**
+     * Reads paths one per line; blank lines and lines starting with # are skipped.
+     */
+    public void enumerate(InputStream stream, Consumer<Path> sink) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            } else if (isRemote(line)) {
+                enumerate(line, sink);
+            } else {
+                walk(Paths.get(line), sink);
+            }
+        }
+    }
+
+    public void walk(final Path root, final Consumer<Path> sink) throws IOException {
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && matchesAny(excludes, root.relativize(dir), dir.getFileName())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && matches(root, file) && hasModMagic(file, attrs)) {
+                    sink.accept(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                System.err.println("[WARN] Could not read " + file + ": " + exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean matches(Path root, Path file) {
+        Path relative = file.equals(root) ? file.getFileName() : root.relativize(file);
+        Path name = file.getFileName();
+        if (!includes.isEmpty() && !matchesAny(includes, relative, name)) {
+            return false;
+        }
+        return !matchesAny(excludes, relative, name);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relative, Path name) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative) || (name != null && matcher.matches(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the file starts like a ZIP, or is named like a tar archive.
+     */
+    public static boolean hasModMagic(Path file, BasicFileAttributes attrs) throws IOException {
+        if (ModpackArchive.isTar(file.getFileName().toString().toLowerCase(Locale.ROOT))) {
+            return true;
+        } else if (attrs.size() < ZIP_MAGIC.length) {
+            return false;
+        }
+
+        byte[] header = new byte[ZIP_MAGIC.length];
+        try (InputStream stream = Files.newInputStream(file)) {
+            int pos = 0, n;
+            while (pos < header.length && (n = stream.read(header, pos, header.length - pos)) > 0) {
+                pos += n;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        for (int i = 0; i < ZIP_MAGIC.length; i++) {
+            if (header[i] != ZIP_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
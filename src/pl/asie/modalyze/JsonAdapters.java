@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written Gson type adapters for the types written out in bulk, to
+ * avoid reflection. They write fields in declaration order and leave out
+ * nulls, so the output is the same as Gson's own.
+ */
+public final class JsonAdapters {
+    public static final TypeAdapter<ModMetadata> MOD_METADATA = new TypeAdapter<ModMetadata>() {
+        @Override
+        public void write(JsonWriter out, ModMetadata value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "modid", value.modid);
+            writeStringList(out, "provides", value.provides);
+            writeString(out, "name", value.name);
+            writeString(out, "description", value.description);
+            writeString(out, "version", value.version);
+            writeString(out, "homepage", value.homepage);
+            writeString(out, "side", value.side);
+            writeString(out, "filename", value.filename);
+            writeString(out, "sha256", value.sha256);
+            writeString(out, "signature", value.signature);
+            writeStringList(out, "authors", value.authors);
+            writeStringMap(out, "dependencies", value.dependencies);
+            if (value.minecraftGuessed != null) {
+                out.name("minecraftGuessed").value(value.minecraftGuessed);
+            }
+            out.name("hasCoremod").value(value.hasCoremod);
+            writeString(out, "level", value.level);
+            writeString(out, "incomplete", value.incomplete);
+            writeStringList(out, "errors", value.errors);
+            out.endObject();
+        }
+
+        @Override
+        public ModMetadata read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            ModMetadata value = new ModMetadata();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "modid":
+                        value.modid = readString(in);
+                        break;
+                    case "provides":
+                        value.provides = readStringList(in);
+                        break;
+                    case "name":
+                        value.name = readString(in);
+                        break;
+                    case "description":
+                        value.description = readString(in);
+                        break;
+                    case "version":
+                        value.version = readString(in);
+                        break;
+                    case "homepage":
+                        value.homepage = readString(in);
+                        break;
+                    case "side":
+                        value.side = readString(in);
+                        break;
+                    case "filename":
+                        value.filename = readString(in);
+                        break;
+                    case "sha256":
+                        value.sha256 = readString(in);
+                        break;
+                    case "signature":
+                        value.signature = readString(in);
+                        break;
+                    case "authors":
+                        value.authors = readStringList(in);
+                        break;
+                    case "dependencies":
+                        value.dependencies = readStringMap(in);
+                        break;
+                    case "minecraftGuessed":
+                        value.minecraftGuessed = in.nextBoolean();
+                        break;
+                    case "hasCoremod":
+                        value.hasCoremod = in.nextBoolean();
+                        break;
+                    case "level":
+                        value.level = readString(in);
+                        break;
+                    case "incomplete":
+                        value.incomplete = readString(in);
+                        break;
+                    case "errors":
+                        value.errors = readStringList(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<McmodInfo.Entry> MCMOD_INFO_ENTRY = new TypeAdapter<McmodInfo.Entry>() {
+        @Override
+        public void write(JsonWriter out, McmodInfo.Entry value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "modid", value.modid);
+            writeString(out, "name", value.name);
+            writeString(out, "description", value.description);
+            writeString(out, "version", value.version);
+            writeString(out, "mcversion", value.mcversion);
+            writeString(out, "url", value.url);
+            writeString(out, "updateUrl", value.updateUrl);
+            writeStringList(out, "authorList", value.authorList);
+            writeString(out, "credits", value.credits);
+            writeString(out, "logoFile", value.logoFile);
+            writeStringList(out, "screenshots", value.screenshots);
+            writeString(out, "parent", value.parent);
+            writeStringList(out, "requiredMods", value.requiredMods);
+            writeStringList(out, "dependencies", value.dependencies);
+            writeStringList(out, "dependants", value.dependants);
+            out.name("useDependencyInformation").value(value.useDependencyInformation);
+            out.endObject();
+        }
+
+        @Override
+        public McmodInfo.Entry read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            // same leniency as McmodInfo.get()
+            McmodInfo.Entry value = new McmodInfo.Entry();
+            McmodInfo.readEntry(in, value);
+            return value;
+        }
+    };
+
+    private JsonAdapters() {
+
+    }
+
+    public static GsonBuilder register(GsonBuilder builder) {
+        return builder
+                .registerTypeAdapter(ModMetadata.class, MOD_METADATA)
+                .registerTypeAdapter(McmodInfo.Entry.class, MCMOD_INFO_ENTRY);
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static void writeStringList(JsonWriter out, String name, List<String> value) throws IOException {
+        if (value != null) {
+            out.name(name).beginArray();
+            for (String s : value) {
+                out.value(s);
+            }
+            out.endArray();
+        }
+    }
+
+    private static void writeStringMap(JsonWriter out, String name, Map<String, String> value) throws IOException {
+        if (value != null) {
+            out.name(name).beginObject();
+            for (Map.Entry<String, String> entry : value.entrySet()) {
+                out.name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            out.endObject();
+        }
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static List<String> readStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        List<String> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(readString(in));
+        }
+        in.endArray();
+        return list;
+    }
+
+    private static Map<String, String> readStringMap(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Map<String, String> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            map.put(in.nextName(), readString(in));
+        }
+        in.endObject();
+        return map;
+    }
+}
@@ -21,16 +21,29 @@ import com.beust.jcommander.Parameter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import pl.asie.modalyze.mcp.MCPDataManager;
+import pl.asie.modalyze.similarity.MinHash;
+import pl.asie.modalyze.similarity.SimilarityIndex;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Main {
     private static class Parameters {
-        @Parameter(names = {"-H", "--hash"}, description = "Generate SHA256 hashes of mods")
+        @Parameter(names = {"-H", "--hash"}, description = "Generate SHA256 hashes of mods (whatever the --level)")
         private boolean hash = false;
 
+        @Parameter(names = {"-l", "--level"}, description = "How deep to analyze mods: inventory (manifest and mcmod.info only), annotations, heuristics or hash")
+        private String level = AnalysisLevel.HEURISTICS.getId();
+
         @Parameter(names = {"-I", "--sort-id"}, description = "Index by mod IDs")
         private boolean sortId = false;
 
@@ -52,47 +65,396 @@ public class Main {
         @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
         private String mcpPath;
 
-        @Parameter(description = "Input files and directories")
+        @Parameter(names = {"-p", "--progress"}, description = "Print progress to stderr every N seconds")
+        private int progressInterval = 0;
+
+        @Parameter(names = {"--max-inflated"}, description = "Stop analyzing a mod after inflating this many MiB (0 = no limit)")
+        private long maxInflatedMiB = 1024;
+
+        @Parameter(names = {"--max-depth"}, description = "Maximum depth of jars nested in jars (0 = no limit)")
+        private int maxDepth = 3;
+
+        @Parameter(names = {"--max-entries"}, description = "Stop analyzing a mod after this many ZIP entries (0 = no limit)")
+        private int maxEntries = 100000;
+
+        @Parameter(names = {"--timeout"}, description = "Stop analyzing a mod after this many seconds (0 = no limit)")
+        private int timeout = 300;
+
+        @Parameter(names = {"--mcp-memory"}, description = "Keep at most about this many MiB of MCP mappings in memory (0 = no limit)")
+        private long mcpMemoryMiB = 0;
+
+        @Parameter(names = {"--journal"}, description = "Record finished mods in this file as the scan goes")
+        private String journal;
+
+        @Parameter(names = {"--resume"}, description = "Skip mods already recorded in the journal")
+        private boolean resume;
+
+        @Parameter(names = {"--verdict-cache"}, description = "File to keep version heuristic results in between runs")
+        private String verdictCache;
+
+        @Parameter(names = {"-t", "--threads"}, description = "Number of analysis threads")
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--low-latency"}, description = "Score version heuristics on all cores, for quicker results on single mods")
+        private boolean lowLatency;
+
+        @Parameter(names = {"--split-threshold"}, description = "Parse the classes of mods at least this many MiB large on all threads (0 = never)")
+        private long splitThresholdMiB = 16;
+
+        @Parameter(names = {"--remote-cache"}, description = "Directory to keep the parts of remote (http/https) mods fetched so far in")
+        private String remoteCache;
+
+        @Parameter(names = {"--signature"}, description = "Store a MinHash signature of each mod's class names and heuristic keys")
+        private boolean signature;
+
+        @Parameter(names = {"--index"}, description = "Similarity index to add analyzed mods to; mods the heuristics can not place get the Minecraft version of similar ones in it (implies --signature and -f)")
+        private String index;
+
+        @Parameter(names = {"--similar-limit"}, description = "Maximum number of similar mods listed per mod by similar")
+        private int similarLimit = 10;
+
+        @Parameter(names = {"--min-similarity"}, description = "Minimum estimated similarity (0-1) of mods listed by similar")
+        private double minSimilarity = 0.5;
+
+        @Parameter(names = {"--include"}, description = "Only analyze files matching this glob (can be repeated)")
+        private List<String> includes = new ArrayList<>();
+
+        @Parameter(names = {"--exclude"}, description = "Skip files and directories matching this glob (can be repeated)")
+        private List<String> excludes = new ArrayList<>();
+
+        @Parameter(description = "Input files and directories; @file reads a list of them, - reads one from stdin")
         private List<String> files = new ArrayList<>();
     }
 
-    private static final Set<ModMetadata> modMetadata = new HashSet<>();
+
+    private static ModMetadataAggregator aggregator;
+    private static final ScanStatistics statistics = new ScanStatistics(ModAnalyzer.MCP);
     private static Parameters parameters = new Parameters();
+    private static AnalysisLimits limits = new AnalysisLimits();
+    private static AnalysisLevel level = AnalysisLevel.HEURISTICS;
+    private static ExecutorService classExecutor;
+    // Files are analyzed in batches, each scheduled largest-first, so that long file lists are never held in memory whole.
+    private static final int BATCH_SIZE = 10000;
+    private static ScanJournal journal;
+    private static SimilarityIndex similarityIndex;
+    // added to the index once the scan is done, so that guesses only ever use the index as it was loaded
+    private static final List<SimilarityIndex.Entry> indexAdditions = new ArrayList<>();
+    // set by "similar", which queries the index with the mods instead of adding them to it
+    private static List<ModMetadata> similarQueries;
 
     public static ModAnalyzer analyzer(File file) {
         return new ModAnalyzer(file)
-                .setVersionHeuristics(true)
-                .setGenerateHash(parameters.hash)
+                .setLevel(level)
+                .setGenerateHash(parameters.hash || level == AnalysisLevel.HASH)
+                .setGenerateSignature(parameters.signature)
+                .setSimilarityIndex(similarityIndex)
                 .setStoreFilenames(parameters.filenames)
-                .setIsVerbose(parameters.verbose);
+                .setIsVerbose(parameters.verbose)
+                .setStatistics(statistics)
+                .setLimits(limits)
+                .setClassExecutor(classExecutor)
+                .setSplitThreshold(parameters.splitThresholdMiB * 1024 * 1024);
     }
 
-    public static void analyzeMods(File file) {
-        if (!file.isDirectory()) {
-            modMetadata.add(analyzer(file).analyze());
-        } else {
-            for (File f : file.listFiles()) {
-                if (f.isDirectory()) {
-                    analyzeMods(f);
+    /**
+     * @param inputs Files, directories, "@file" lists of them or "-" for stdin.
+     */
+    public static void analyzeMods(List<String> inputs) throws IOException {
+        InputEnumerator enumerator = new InputEnumerator();
+        for (String glob : parameters.includes) {
+            enumerator.addInclude(glob);
+        }
+        for (String glob : parameters.excludes) {
+            enumerator.addExclude(glob);
+        }
+
+        final List<File> batch = new ArrayList<>();
+        enumerator.setRemoteSink(new Consumer<String>() {
+            @Override
+            public void accept(String url) {
+                // keep results in listing order
+                analyzeBatch(batch);
+                batch.clear();
+                analyzeRemote(url);
+            }
+        });
+        Consumer<Path> sink = new Consumer<Path>() {
+            @Override
+            public void accept(Path path) {
+                statistics.fileDiscovered();
+                batch.add(path.toFile());
+                if (batch.size() >= BATCH_SIZE) {
+                    analyzeBatch(batch);
+                    batch.clear();
+                }
+            }
+        };
+        for (String input : inputs) {
+            enumerator.enumerate(input, sink);
+        }
+        analyzeBatch(batch);
+    }
+
+    private static void analyzeBatch(List<File> inputs) {
+        // Decided once per file, as the file or journal could change before the results are collected.
+        List<File> mods = new ArrayList<>();
+        List<List<ModMetadata>> journaled = new ArrayList<>(inputs.size());
+        boolean[] modpacks = new boolean[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            File file = inputs.get(i);
+            List<ModMetadata> results = journal != null ? journal.get(file) : null;
+            journaled.add(results);
+            if (results == null) {
+                statistics.fileQueued();
+                if (ModpackArchive.isModpack(file)) {
+                    modpacks[i] = true;
                 } else {
-                    modMetadata.add(analyzer(f).analyze());
+                    mods.add(file);
+                }
+            }
+        }
+
+        ScanScheduler scheduler = new ScanScheduler(parameters.threads);
+        Iterator<ModMetadata> results = scheduler.run(mods, new Function<File, ModMetadata>() {
+            @Override
+            public ModMetadata apply(File file) {
+                ModMetadata metadata = analyzer(file).analyze();
+                if (journal != null) {
+                    journal.record(file, Collections.singletonList(metadata));
                 }
+                return metadata;
+            }
+        }).iterator();
+        if (parameters.verbose || parameters.progressInterval > 0) {
+            System.err.println("[*] " + scheduler.getReport());
+        }
+
+        // Results are added in listing order, however they were scheduled.
+        for (int i = 0; i < inputs.size(); i++) {
+            if (journaled.get(i) != null) {
+                addResults(journaled.get(i), inputs.get(i));
+            } else if (modpacks[i]) {
+                analyzeModpack(inputs.get(i));
+            } else {
+                addResults(Collections.singletonList(results.next()), inputs.get(i));
+            }
+        }
+    }
+
+    private static void analyzeRemote(String url) {
+        statistics.fileDiscovered();
+        statistics.fileQueued();
+        try (RemoteZip zip = new RemoteZip(new URL(url))) {
+            if (parameters.remoteCache != null) {
+                zip.setCacheDir(new File(parameters.remoteCache));
+            }
+            zip.open();
+            ModMetadata metadata = analyzer(null).setName(zip.getName()).analyze(zip);
+            if (parameters.verbose) {
+                System.err.println("[*] " + url + ": " + zip.getRequestCount() + " requests, "
+                        + zip.getBytesFetched() + " of " + zip.getLength() + " bytes fetched");
+            }
+            addResult(metadata, url);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not read " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static void analyzeModpack(File file) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parameters.threads));
+        try {
+            List<ModMetadata> results = new ModpackArchive(file, asyncAnalyzer(executor), limits, parameters.threads * 2).analyze();
+            if (journal != null) {
+                journal.record(file, results);
+            }
+            addResults(results, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param indexId The mod's ID in the similarity index, or null to leave it out.
+     */
+    private static void addResult(ModMetadata metadata, String indexId) {
+        if (similarQueries != null) {
+            if (metadata != null) {
+                similarQueries.add(metadata);
             }
+            return;
         }
+
+        aggregator.add(metadata);
+        if (similarityIndex != null && metadata != null && metadata.signature != null && indexId != null) {
+            SimilarityIndex.Entry entry = new SimilarityIndex.Entry(indexId, metadata.modid, metadata.version,
+                    metadata.dependencies != null ? metadata.dependencies.get("minecraft") : null,
+                    MinHash.decode(metadata.signature));
+            entry.guessed = metadata.minecraftGuessed;
+            indexAdditions.add(entry);
+        }
+    }
+
+    /**
+     * Adds the results found in a file. In the similarity index, they go by
+     * the path of that file, or of the archive entry they were found in, so
+     * that other copies of a mod with the same filename do not replace them.
+     */
+    private static void addResults(Collection<ModMetadata> results, File source) {
+        File dir = source.getAbsoluteFile().getParentFile();
+        for (ModMetadata metadata : results) {
+            // filenames of mods in modpack archives are "archive!/entry"
+            addResult(metadata, metadata != null && metadata.filename != null ? new File(dir, metadata.filename).getPath() : null);
+        }
+    }
+
+    private static AsyncModAnalyzer asyncAnalyzer(ExecutorService executor) {
+        return new AsyncModAnalyzer(executor)
+                .setLevel(level)
+                .setGenerateHash(parameters.hash || level == AnalysisLevel.HASH)
+                .setGenerateSignature(parameters.signature)
+                .setSimilarityIndex(similarityIndex)
+                .setStoreFilenames(parameters.filenames)
+                .setLimits(limits)
+                .setStatistics(statistics)
+                .setClassExecutor(classExecutor)
+                .setSplitThreshold(parameters.splitThresholdMiB * 1024 * 1024);
+    }
+
+    /**
+     * @return The options which the results in a journal depend on.
+     */
+    private static String getJournalOptions() {
+        return "level=" + level.getId() + ",hash=" + parameters.hash + ",filenames=" + parameters.filenames + ",signature=" + parameters.signature
+                + ",maxInflated=" + limits.getMaxInflatedBytes() + ",maxDepth=" + limits.getMaxNestingDepth()
+                + ",maxEntries=" + limits.getMaxEntries() + ",timeout=" + limits.getMaxMillis()
+                + ",mcp=" + MCPDataManager.MCP_DIR.getAbsolutePath();
+    }
+
+    private static void saveVerdictCache() {
+        if (parameters.verdictCache != null) {
+            try {
+                ModAnalyzer.MCP.getVerdictCache().save(new File(parameters.verdictCache), ModAnalyzer.MCP.getMappingStamp());
+            } catch (IOException e) {
+                System.err.println("[WARN] Could not write verdict cache: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void diff() throws IOException {
+        if (parameters.files.size() != 2) {
+            System.err.println("[ERROR] diff needs exactly two directories!");
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parameters.threads));
+        try {
+            ModpackDiff.Result result = new ModpackDiff(asyncAnalyzer(executor))
+                    .diff(new File(parameters.files.get(0)), new File(parameters.files.get(1)));
+            System.out.println(JsonAdapters.register(new GsonBuilder()).setPrettyPrinting().create().toJson(result));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void loadIndex(String path) {
+        similarityIndex = new SimilarityIndex();
+        try {
+            similarityIndex.load(new File(path));
+        } catch (IOException e) {
+            System.err.println("[WARN] Could not read similarity index: " + e.getMessage());
+        }
+    }
+
+    private static void saveIndex() {
+        if (parameters.index != null) {
+            for (SimilarityIndex.Entry entry : indexAdditions) {
+                similarityIndex.add(entry);
+            }
+            try {
+                similarityIndex.save(new File(parameters.index));
+            } catch (IOException e) {
+                System.err.println("[WARN] Could not write similarity index: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The similar mods in the index for each mod, by filename.
+     */
+    private static Map<String, List<SimilarityIndex.Match>> getSimilarMods() {
+        Map<String, List<SimilarityIndex.Match>> result = new LinkedHashMap<>();
+        for (ModMetadata metadata : similarQueries) {
+            if (metadata.signature != null) {
+                result.put(metadata.filename, similarityIndex.query(MinHash.decode(metadata.signature),
+                        parameters.similarLimit, parameters.minSimilarity));
+            } else {
+                System.err.println("[WARN] " + metadata.filename + ": no classes to compare");
+            }
+        }
+        return result;
     }
 
     public static void main(String[] args) throws IOException {
-        JCommander jCommander = new JCommander(parameters, args);
+        // "diff <old directory> <new directory>"
+        boolean isDiff = args.length > 0 && "diff".equals(args[0]);
+        // "similar <index> <files...>"
+        boolean isSimilar = args.length > 0 && "similar".equals(args[0]);
+        // JCommander would expand @file arguments into one big list, so list inputs are taken out first and read as needed.
+        List<String> jCommanderArgs = new ArrayList<>();
+        List<String> listInputs = new ArrayList<>();
+        for (String arg : (isDiff || isSimilar) ? Arrays.copyOfRange(args, 1, args.length) : args) {
+            if (!isDiff && (arg.equals("-") || (arg.startsWith("@") && arg.length() > 1))) {
+                listInputs.add(arg);
+            } else {
+                jCommanderArgs.add(arg);
+            }
+        }
+        JCommander jCommander = new JCommander(parameters, jCommanderArgs.toArray(new String[jCommanderArgs.size()]));
 
         if (parameters.help) {
             jCommander.usage();
             System.exit(0);
         }
 
+        level = AnalysisLevel.fromId(parameters.level);
+        if (level == null) {
+            System.err.println("[ERROR] Unknown analysis level: " + parameters.level);
+            System.exit(1);
+        }
+
+        if (isSimilar) {
+            if (parameters.files.isEmpty()) {
+                System.err.println("[ERROR] similar needs an index file!");
+                System.exit(1);
+            }
+            loadIndex(parameters.files.remove(0));
+            similarQueries = new ArrayList<>();
+            parameters.index = null;
+            parameters.signature = true;
+            parameters.filenames = true;
+        } else if (parameters.index != null) {
+            loadIndex(parameters.index);
+            parameters.signature = true;
+            parameters.filenames = true;
+        }
+
         if (parameters.sortFilename) {
             parameters.filenames = true;
         }
 
+        ModAnalyzer.MCP.setMemoryBudget(parameters.mcpMemoryMiB * 1024 * 1024);
+        if (parameters.lowLatency) {
+            ModAnalyzer.MCP.setScoringPool(ForkJoinPool.commonPool());
+        }
+
+        limits = new AnalysisLimits()
+                .setMaxInflatedBytes(parameters.maxInflatedMiB * 1024 * 1024)
+                .setMaxNestingDepth(parameters.maxDepth)
+                .setMaxEntries(parameters.maxEntries)
+                .setMaxMillis(parameters.timeout * 1000L);
+
         if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
             File f = new File(parameters.mcpPath);
             if (f.isDirectory()) {
@@ -103,104 +465,78 @@ public class Main {
             }
         }
 
-        boolean isDir = false;
+        if (parameters.threads > 1 && parameters.splitThresholdMiB > 0) {
+            // kept apart from the analysis executors, which wait on its tasks
+            classExecutor = Executors.newFixedThreadPool(parameters.threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "modalyze-classes");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        ModMetadataAggregator.Mode mode = parameters.sortFilename ? ModMetadataAggregator.Mode.FILENAME
+                : (parameters.sortId ? ModMetadataAggregator.Mode.ID : ModMetadataAggregator.Mode.ID_VERSION);
+        aggregator = new ModMetadataAggregator(mode, parameters.unknown);
+
+        if (parameters.verdictCache != null) {
+            try {
+                ModAnalyzer.MCP.getVerdictCache().load(new File(parameters.verdictCache), ModAnalyzer.MCP.getMappingStamp());
+            } catch (IOException e) {
+                System.err.println("[WARN] Could not read verdict cache: " + e.getMessage());
+            }
+        }
+
+        if (isDiff) {
+            diff();
+            saveVerdictCache();
+            return;
+        }
+
+        statistics.register();
+        statistics.startSampler(parameters.progressInterval > 0 ? parameters.progressInterval : 5,
+                parameters.progressInterval > 0 ? System.err : null);
+
+        if (parameters.journal != null) {
+            journal = new ScanJournal(new File(parameters.journal), getJournalOptions(), parameters.resume);
+            if (parameters.resume && journal.size() > 0) {
+                System.err.println("[*] Resuming, " + journal.size() + " files already done");
+            }
+        } else if (parameters.resume) {
+            System.err.println("[ERROR] --resume needs a --journal!");
+            System.exit(1);
+        }
+
+        boolean isDir = !listInputs.isEmpty();
+        List<String> inputs = new ArrayList<>(parameters.files);
         for (String s : parameters.files) {
-            File f = new File(s);
-            isDir |= f.isDirectory();
-            analyzeMods(f);
+            isDir |= new File(s).isDirectory();
+        }
+        inputs.addAll(listInputs);
+        try {
+            analyzeMods(inputs);
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
         }
 
-        GsonBuilder gsonBuilder = new GsonBuilder();
+        statistics.stopSampler();
+        saveVerdictCache();
+        saveIndex();
+
+        GsonBuilder gsonBuilder = JsonAdapters.register(new GsonBuilder());
         gsonBuilder.setPrettyPrinting();
         Gson gson = gsonBuilder.create();
 
-        if (isDir || parameters.files.size() > 1 || modMetadata.size() > 1) {
-            if (parameters.sortFilename) {
-                Map<String, ModMetadata> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-                    metadataMap.put(m.filename, m);
-                }
-                System.out.println(gson.toJson(metadataMap));
-            } else if (parameters.sortId) {
-                Map<String, List<ModMetadata>> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-                    String key = m.modid;
-                    if (key == null && parameters.unknown) {
-                        int i = 0;
-                        while (metadataMap.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        key = "UNKNOWN-" + i;
-                    }
-                    if (key != null) {
-                        List<ModMetadata> mods = metadataMap.get(key);
-                        if (mods == null) {
-                            mods = new ArrayList<>();
-                            metadataMap.put(key, mods);
-                        }
-                        mods.add(m);
-                    }
-                }
-                for (List<ModMetadata> list : metadataMap.values()) {
-                    Collections.sort(list, new Comparator<ModMetadata>() {
-                        @Override
-                        public int compare(ModMetadata m1, ModMetadata m2) {
-                            if (m1.version == null && m2.version == null) {
-                                return 0;
-                            } else if (m1.version != null && m2.version != null) {
-                                return m1.version.compareTo(m2.version);
-                            } else {
-                                return m1.version != null ? Integer.MAX_VALUE : Integer.MIN_VALUE;
-                            }
-                        }
-                    });
-                }
-                System.out.println(gson.toJson(metadataMap));
-            } else {
-                Map<String, Map<String, ModMetadata>> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-
-                    String key;
-                    if (m.modid != null) {
-                        key = m.modid;
-                    } else if (!parameters.unknown) {
-                        continue;
-                    } else {
-                        int i = 0;
-                        while (metadataMap.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        key = "UNKNOWN-" + i;
-                    }
-
-                    Map<String, ModMetadata> metadataMap1 = metadataMap.get(key);
-                    if (metadataMap1 == null) {
-                        metadataMap1 = new HashMap<>();
-                        metadataMap.put(key, metadataMap1);
-                    }
-                    if (m.version != null) {
-                        metadataMap1.put(m.version, m);
-                    } else if (parameters.unknown) {
-                        int i = 0;
-                        while (metadataMap1.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        metadataMap1.put("UNKNOWN-" + i, m);
-                    }
-                }
-                System.out.println(gson.toJson(metadataMap));
-            }
-        } else if (modMetadata.size() >= 1) {
-            System.out.println(gson.toJson(modMetadata.toArray()[0]));
+        if (isSimilar) {
+            System.out.println(gson.toJson(getSimilarMods()));
+        } else if (isDir || parameters.files.size() > 1 || aggregator.size() > 1) {
+            System.out.println(gson.toJson(aggregator.getResult()));
+        } else if (aggregator.size() >= 1) {
+            System.out.println(gson.toJson(aggregator.getFirst()));
         } else {
             System.err.println("[ERROR] No mods found!");
         }
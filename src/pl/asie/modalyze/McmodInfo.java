@@ -16,23 +16,20 @@
 
 package pl.asie.modalyze;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
-import org.apache.commons.io.IOUtils;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 public class McmodInfo {
-    private static final Gson GSON = new GsonBuilder().create();
-    private static final Type LIST_TYPE_TOKEN = new TypeToken<List<Entry>>(){}.getType();
-
-    public class Entry {
+    public static class Entry {
         public String modid;
         public String name;
         public String description;
@@ -62,26 +59,161 @@ public class McmodInfo {
     }
 
     public static McmodInfo get(InputStream stream) throws IOException {
-        McmodInfo info = null;
-        String jsonText = IOUtils.toString(stream, "UTF-8");
+        McmodInfo info = new McmodInfo();
+        // The stream belongs to the caller (usually a ZipInputStream), so the reader is not closed.
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        reader.setLenient(true);
 
         try {
-            info = GSON.fromJson(jsonText, McmodInfo.class);
-        } catch (JsonSyntaxException e) {
-            try {
-                info = new McmodInfo();
-                info.modList = GSON.fromJson(jsonText, LIST_TYPE_TOKEN);
-                if (info.modList == null) {
-                    info = null;
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                // {"modinfoversion": 2, "modList": [...]}
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("modList".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        info.modList = new ArrayList<>();
+                        readEntries(reader, info.modList);
+                    } else {
+                        reader.skipValue();
+                    }
                 }
-            } catch (Exception ee) {
-                ee.printStackTrace();
-                info = null;
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                // [{...}, {...}]
+                info.modList = new ArrayList<>();
+                readEntries(reader, info.modList);
+            }
+        } catch (MalformedJsonException | EOFException e) {
+            // Broken or truncated file - keep whatever entries were read in full.
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Structure we did not expect - same as above.
+        }
+
+        return info.modList != null ? info : null;
+    }
+
+    private static void readEntries(JsonReader reader, List<Entry> entries) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                Entry entry = new Entry();
+                // Added up front, so an entry cut short by a syntax error still keeps the fields read so far.
+                entries.add(entry);
+                readEntry(reader, entry);
+            } else {
+                reader.skipValue();
             }
-        } catch (Exception e) {
-            info = null;
         }
+        reader.endArray();
+    }
+
+    static void readEntry(JsonReader reader, Entry entry) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "modid":
+                    entry.modid = readString(reader);
+                    break;
+                case "name":
+                    entry.name = readString(reader);
+                    break;
+                case "description":
+                    entry.description = readString(reader);
+                    break;
+                case "version":
+                    entry.version = readString(reader);
+                    break;
+                case "mcversion":
+                    entry.mcversion = readString(reader);
+                    break;
+                case "url":
+                    entry.url = readString(reader);
+                    break;
+                case "updateUrl":
+                    entry.updateUrl = readString(reader);
+                    break;
+                case "authorList":
+                    entry.authorList = readStringList(reader, entry.authorList);
+                    break;
+                case "credits":
+                    entry.credits = readString(reader);
+                    break;
+                case "logoFile":
+                    entry.logoFile = readString(reader);
+                    break;
+                case "screenshots":
+                    entry.screenshots = readStringList(reader, entry.screenshots);
+                    break;
+                case "parent":
+                    entry.parent = readString(reader);
+                    break;
+                case "requiredMods":
+                    entry.requiredMods = readStringList(reader, entry.requiredMods);
+                    break;
+                case "dependencies":
+                    entry.dependencies = readStringList(reader, entry.dependencies);
+                    break;
+                case "dependants":
+                    entry.dependants = readStringList(reader, entry.dependants);
+                    break;
+                case "useDependencyInformation":
+                    entry.useDependencyInformation = readBoolean(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
 
-        return info;
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                // Lenient mode hands back unquoted literals as strings, too.
+                return reader.nextString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case STRING:
+                // "true" in quotes, which Gson accepted as well
+                return Boolean.parseBoolean(reader.nextString());
+            default:
+                reader.skipValue();
+                return false;
+        }
+    }
+
+    private static List<String> readStringList(JsonReader reader, List<String> list) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String s = readString(reader);
+                if (s != null) {
+                    list = StringUtils.append(list, s);
+                }
+            }
+            reader.endArray();
+        } else {
+            // "authorList": "Someone" instead of ["Someone"]
+            String s = readString(reader);
+            if (s != null) {
+                list = StringUtils.append(list, s);
+            }
+        }
+        return list;
     }
 }
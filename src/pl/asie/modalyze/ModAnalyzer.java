@@ -16,52 +16,202 @@
 
 package pl.asie.modalyze;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
 import org.objectweb.asm.*;
+import pl.asie.modalyze.jfr.AnalysisEvents;
+import pl.asie.modalyze.mcp.KeyScorer;
 import pl.asie.modalyze.mcp.MCPDataManager;
 import pl.asie.modalyze.mcp.MCPUtils;
+import pl.asie.modalyze.mcp.VersionHints;
+import pl.asie.modalyze.similarity.MinHash;
+import pl.asie.modalyze.similarity.SimilarityIndex;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class ModAnalyzer {
     public static final MCPDataManager MCP = new MCPDataManager();
-    private static final List<String> FORGE_MOD_ANNOTATIONS = Arrays.asList(
+    public static final List<String> FORGE_MOD_ANNOTATIONS = Collections.unmodifiableList(Arrays.asList(
             "Lfml/Mod;", // very early 1.2.5 commits
             "Lcpw/mods/fml/common/Mod;", // 1.2.5-1.7.10
             "Lnet/minecraftforge/fml/common/Mod;" // 1.8+
-    );
-    private final Set<String> keys = new HashSet<>();
+    ));
+    private static final int MAX_ERRORS = 16;
+    private static final ThreadLocal<byte[]> DRAIN_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+    private static final byte[] CORE_PLUGIN_ATTRIBUTE = "FMLCorePlugin:".getBytes(StandardCharsets.US_ASCII);
+    private static final int CLASSES_PER_TASK = 128;
+    private static final AnalysisEvents EVENTS = AnalysisEvents.get();
+    // how similar indexed mods must be for their Minecraft version to be taken
+    private static final double GUESS_SIMILARITY = 0.5;
+    private final VersionHints versionHints = new VersionHints();
+    private final ClassScan directScan = new ClassScan(new Consumer<String>() {
+        @Override
+        public void accept(String key) {
+            addKey(key);
+        }
+    }, versionHints, false);
+    private KeyScorer scorer;
+    private MinHash signature;
+    private SimilarityIndex similarityIndex;
+    private int classCount;
+    private String heuristicVersion;
     private final File file;
-    private boolean versionHeuristics, generateHash, storeFilenames, isVerbose;
+    private String name;
+    private boolean scanClasses = true, versionHeuristics, generateHash, generateSignature, storeFilenames, isVerbose;
+    private ScanStatistics statistics;
+    private AnalysisLimits limits = new AnalysisLimits();
+    private Budget budget;
+    private int depth;
+    private Executor classExecutor;
+    private long splitThreshold = 16 * 1024 * 1024;
+
+    /**
+     * Tracks a top-level jar's usage of its AnalysisLimits; shared with
+     * the analyzers of any jars nested inside it, and with the threads
+     * parsing its classes.
+     */
+    private static final class Budget {
+        private final String jar;
+        private final AnalysisLimits limits;
+        private final long deadline;
+        private final AtomicLong inflatedBytes = new AtomicLong();
+        private final AtomicInteger entries = new AtomicInteger();
+        private volatile boolean cancelled;
+        private String skippedNested;
+
+        Budget(String jar, AnalysisLimits limits) {
+            this.jar = jar;
+            this.limits = limits;
+            this.deadline = limits.getMaxMillis() > 0 ? System.nanoTime() + limits.getMaxMillis() * 1000000L : 0;
+        }
+
+        void onEntry() {
+            if (limits.getMaxEntries() > 0 && entries.incrementAndGet() > limits.getMaxEntries()) {
+                throw new AnalysisLimitException(AnalysisLimitException.Limit.ENTRIES,
+                        "Entry count limit (" + limits.getMaxEntries() + ") exceeded");
+            }
+            checkTime();
+        }
+
+        void onRead(int n) {
+            if (limits.getMaxInflatedBytes() > 0 && inflatedBytes.addAndGet(n) > limits.getMaxInflatedBytes()) {
+                throw new AnalysisLimitException(AnalysisLimitException.Limit.INFLATED_BYTES,
+                        "Inflated size limit (" + limits.getMaxInflatedBytes() + " bytes) exceeded");
+            }
+            checkTime();
+        }
+
+        void checkTime() {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new AnalysisLimitException(AnalysisLimitException.Limit.TIME,
+                        "Time limit (" + limits.getMaxMillis() + " ms) exceeded");
+            }
+        }
+
+        InputStream track(InputStream stream) {
+            return new ProxyInputStream(stream) {
+                @Override
+                protected void afterRead(int n) {
+                    if (n > 0) {
+                        onRead(n);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects what the visitors find in classes. The metadata changes are
+     * either applied right away or, when classes are parsed on other threads,
+     * kept until they can be replayed in archive order.
+     */
+    private static final class ClassScan {
+        private final Consumer<String> keys;
+        private final VersionHints versionHints;
+        private final List<Runnable> deferred;
+
+        ClassScan(Consumer<String> keys, VersionHints versionHints, boolean defer) {
+            this.keys = keys;
+            this.versionHints = versionHints;
+            this.deferred = defer ? new ArrayList<Runnable>() : null;
+        }
+
+        void apply(Runnable change) {
+            if (deferred != null) {
+                deferred.add(change);
+            } else {
+                change.run();
+            }
+        }
+
+        void replay() {
+            for (Runnable change : deferred) {
+                change.run();
+            }
+        }
+    }
 
     public class ModHMethodVisitor extends MethodVisitor {
+        private final ClassScan scan;
+
         public ModHMethodVisitor() {
+            this(directScan);
+        }
+
+        private ModHMethodVisitor(ClassScan scan) {
             super(Opcodes.ASM5);
+            this.scan = scan;
         }
 
         @Override
         public void visitMethodInsn(int opcode, String owner, String name,
                                     String desc, boolean itf) {
-            keys.add(MCPUtils.getMethodKey(owner + "/" + name, desc));
+            scan.keys.accept(MCPUtils.getMethodKey(owner + "/" + name, desc));
         }
     }
 
     public class ModAnnotationVisitor extends AnnotationVisitor {
         private final ModMetadata metadata;
-        private Map<String, Object> data = new HashMap<>();
+        private final ClassScan scan;
+        private final Map<String, Object> data = new HashMap<>();
 
         public ModAnnotationVisitor(ModMetadata metadata, AnnotationVisitor av) {
+            this(metadata, av, directScan);
+        }
+
+        private ModAnnotationVisitor(ModMetadata metadata, AnnotationVisitor av, ClassScan scan) {
             super(Opcodes.ASM5, av);
             this.metadata = metadata;
+            this.scan = scan;
         }
 
         @Override
@@ -79,56 +229,71 @@ public class ModAnalyzer {
         @Override
         public void visitEnd() {
             super.visitEnd();
-            metadata.valid = true;
+            scan.apply(new Runnable() {
+                @Override
+                public void run() {
+                    appendModAnnotation(metadata, data);
+                }
+            });
+        }
+    }
 
-            if (data.containsKey("modid")) {
-                metadata.modid = (String) data.get("modid"); // always more accurate
-                metadata.provides = StringUtils.append(metadata.provides, (String) data.get("modid"));
-            }
+    private void appendModAnnotation(ModMetadata metadata, Map<String, Object> data) {
+        metadata.valid = true;
 
-            if (data.containsKey("version")) {
-                metadata.version = StringUtils.select(metadata.version, (String) data.get("version"));
-            }
+        if (data.containsKey("modid")) {
+            metadata.modid = (String) data.get("modid"); // always more accurate
+            metadata.provides = StringUtils.append(metadata.provides, (String) data.get("modid"));
+        }
+
+        if (data.containsKey("version")) {
+            metadata.version = StringUtils.select(metadata.version, (String) data.get("version"));
+        }
 
-            String dependencyStr = data.containsKey("dependencies") ? ((String) data.get("dependencies"))
-                    : (data.containsKey("dependsOn") ? ((String) data.get("dependsOn")) : null);
+        String dependencyStr = data.containsKey("dependencies") ? ((String) data.get("dependencies"))
+                : (data.containsKey("dependsOn") ? ((String) data.get("dependsOn")) : null);
 
-            if (dependencyStr != null) {
-                List<String> dependencies = Arrays.asList(dependencyStr.split(";"));
-                for (String s : dependencies) {
-                    String[] dep = s.split(":");
-                    if (dep.length == 2 && dep[0].startsWith("require")) {
-                        // ModLoader used "require-" instead of "required-"
-                        metadata.dependencies = addDependency(metadata.dependencies, dep[1]);
-                    }
+        if (dependencyStr != null) {
+            List<String> dependencies = Arrays.asList(dependencyStr.split(";"));
+            for (String s : dependencies) {
+                String[] dep = s.split(":");
+                if (dep.length == 2 && dep[0].startsWith("require")) {
+                    // ModLoader used "require-" instead of "required-"
+                    metadata.dependencies = addDependency(metadata.dependencies, dep[1]);
                 }
             }
+        }
 
-            if (data.containsKey("acceptedMinecraftVersions")
-                    && ModAnalyzerUtils.isValidMcVersion((String) data.get("acceptedMinecraftVersions"))) {
-                metadata.dependencies = addDependency(metadata.dependencies, "minecraft@" + data.get("acceptedMinecraftVersions"));
-            }
+        if (data.containsKey("acceptedMinecraftVersions")
+                && ModAnalyzerUtils.isValidMcVersion((String) data.get("acceptedMinecraftVersions"))) {
+            metadata.dependencies = addDependency(metadata.dependencies, "minecraft@" + data.get("acceptedMinecraftVersions"));
+        }
 
-            if (data.containsKey("clientSideOnly")) {
-                if (((boolean) data.get("clientSideOnly")) == true) {
-                    metadata.side = "client";
-                }
-            } else if (data.containsKey("serverSideOnly")) {
-                if (((boolean) data.get("serverSideOnly")) == true) {
-                    metadata.side = "server";
-                }
+        if (data.containsKey("clientSideOnly")) {
+            if (((boolean) data.get("clientSideOnly")) == true) {
+                metadata.side = "client";
+            }
+        } else if (data.containsKey("serverSideOnly")) {
+            if (((boolean) data.get("serverSideOnly")) == true) {
+                metadata.side = "server";
             }
         }
     }
 
     public class ModClassVisitor extends ClassVisitor {
         private final ModMetadata metadata;
+        private final ClassScan scan;
         private String superName, className;
         private boolean isBaseMod, useClassNameAsModName;
 
         public ModClassVisitor(ModMetadata metadata) {
+            this(metadata, directScan);
+        }
+
+        private ModClassVisitor(ModMetadata metadata, ClassScan scan) {
             super(Opcodes.ASM5);
             this.metadata = metadata;
+            this.scan = scan;
         }
 
         @Override
@@ -141,29 +306,42 @@ public class ModAnalyzer {
             if (superName.endsWith("BaseMod") || superName.endsWith("BaseModMp") || superName.equals("forge/NetworkMod")) {
                 isBaseMod = true;
                 useClassNameAsModName = true;
-                metadata.valid = true;
+                scan.apply(new Runnable() {
+                    @Override
+                    public void run() {
+                        metadata.valid = true;
+                    }
+                });
+                scan.versionHints.addBaseModSuperclass(superName);
             }
         }
 
         @Override
         public void visitEnd() {
             if (useClassNameAsModName) {
-                String[] data = className.split("/");
-                metadata.modid = metadata.name = StringUtils.select(metadata.name, data[data.length - 1]);
+                final String[] data = className.split("/");
+                scan.apply(new Runnable() {
+                    @Override
+                    public void run() {
+                        metadata.modid = metadata.name = StringUtils.select(metadata.name, data[data.length - 1]);
+                    }
+                });
             }
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc,
                                          String signature, String[] exceptions) {
+            budget.checkTime();
+
             if (useClassNameAsModName && name.equals("getName")) {
                 // getName() is overridden so it is not reliable
                 useClassNameAsModName = false;
             }
 
             MethodVisitor visitor;
-            if (versionHeuristics) {
-                visitor = new ModHMethodVisitor();
+            if (versionHeuristics || generateSignature) {
+                visitor = new ModHMethodVisitor(scan);
             } else {
                 visitor = super.visitMethod(access, name, desc, signature, exceptions);
             }
@@ -175,7 +353,8 @@ public class ModAnalyzer {
             AnnotationVisitor visitor = super.visitAnnotation(desc, visible);
 
             if (FORGE_MOD_ANNOTATIONS.contains(desc)) {
-                return new ModAnnotationVisitor(metadata, visitor);
+                scan.versionHints.addForgeModAnnotation(desc);
+                return new ModAnnotationVisitor(metadata, visitor, scan);
             } else {
                 return visitor;
             }
@@ -184,6 +363,40 @@ public class ModAnalyzer {
 
     public ModAnalyzer(File file) {
         this.file = file;
+        this.name = file != null ? file.getName() : null;
+    }
+
+    /**
+     * Sets the name stored as the filename of the result; defaults to the
+     * file's name. Mostly useful for mods analyzed from memory.
+     */
+    public ModAnalyzer setName(String n) {
+        name = n;
+        return this;
+    }
+
+    /**
+     * Sets what is analyzed at all; see AnalysisLevel. Overrides the version
+     * heuristics and hash settings.
+     */
+    public ModAnalyzer setLevel(AnalysisLevel level) {
+        scanClasses = level != AnalysisLevel.INVENTORY;
+        versionHeuristics = level.compareTo(AnalysisLevel.HEURISTICS) >= 0;
+        generateHash = level == AnalysisLevel.HASH;
+        return this;
+    }
+
+    /**
+     * @return The highest level whose work is all done with the current settings.
+     */
+    public AnalysisLevel getLevel() {
+        if (!scanClasses) {
+            return AnalysisLevel.INVENTORY;
+        } else if (!versionHeuristics) {
+            return AnalysisLevel.ANNOTATIONS;
+        } else {
+            return generateHash ? AnalysisLevel.HASH : AnalysisLevel.HEURISTICS;
+        }
     }
 
     public ModAnalyzer setGenerateHash(boolean gh) {
@@ -191,6 +404,25 @@ public class ModAnalyzer {
         return this;
     }
 
+    /**
+     * Makes the result carry a MinHash signature of the mod's class names
+     * and heuristic keys; see SimilarityIndex.
+     */
+    public ModAnalyzer setGenerateSignature(boolean gs) {
+        generateSignature = gs;
+        return this;
+    }
+
+    /**
+     * Lets mods whose Minecraft version the heuristics can not tell take
+     * that of the similar mods in the index, if those agree on one. Needs
+     * signatures to be generated.
+     */
+    public ModAnalyzer setSimilarityIndex(SimilarityIndex index) {
+        similarityIndex = index;
+        return this;
+    }
+
     public ModAnalyzer setVersionHeuristics(boolean v) {
         versionHeuristics = v;
         return this;
@@ -206,6 +438,48 @@ public class ModAnalyzer {
         return this;
     }
 
+    public ModAnalyzer setStatistics(ScanStatistics s) {
+        statistics = s;
+        return this;
+    }
+
+    public ModAnalyzer setLimits(AnalysisLimits l) {
+        limits = l;
+        return this;
+    }
+
+    /**
+     * Lets the classes of large jars be parsed in parallel on the given
+     * executor. It should not be a bounded executor which analyze() itself
+     * may be running on, as the analyzing thread waits for the parsing tasks.
+     */
+    public ModAnalyzer setClassExecutor(Executor e) {
+        classExecutor = e;
+        return this;
+    }
+
+    /**
+     * @param bytes The minimum size of a jar for its classes to be parsed in
+     *              parallel, if a class executor is set.
+     */
+    public ModAnalyzer setSplitThreshold(long bytes) {
+        splitThreshold = bytes;
+        return this;
+    }
+
+    private ModAnalyzer createNested() {
+        ModAnalyzer analyzer = new ModAnalyzer((File) null)
+                .setVersionHeuristics(versionHeuristics)
+                .setGenerateSignature(generateSignature)
+                .setSimilarityIndex(similarityIndex)
+                .setIsVerbose(isVerbose)
+                .setLimits(limits);
+        analyzer.scanClasses = scanClasses;
+        analyzer.budget = budget;
+        analyzer.depth = depth + 1;
+        return analyzer;
+    }
+
     private Map<String, String> addDependency(Map<String, String> deps, String dep) {
         if (deps == null) {
             deps = new HashMap<>();
@@ -244,18 +518,30 @@ public class ModAnalyzer {
         return metadata;
     }
 
-    private void appendManifest(ModMetadata metadata, InputStream stream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-        String line;
+    private void appendManifest(ModMetadata metadata, InputStream stream, long size) throws IOException {
+        ReadBuffers buffers = ReadBuffers.get();
+        byte[] data = buffers.read(stream, size);
+        int length = buffers.length();
 
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("FMLCorePlugin:")) {
-                metadata.hasCoremod = true;
+        for (int i = 0; i + CORE_PLUGIN_ATTRIBUTE.length <= length; i++) {
+            if (i == 0 || data[i - 1] == '\n' || data[i - 1] == '\r') {
+                int j = 0;
+                while (j < CORE_PLUGIN_ATTRIBUTE.length && data[i + j] == CORE_PLUGIN_ATTRIBUTE[j]) {
+                    j++;
+                }
+                if (j == CORE_PLUGIN_ATTRIBUTE.length) {
+                    metadata.hasCoremod = true;
+                    return;
+                }
             }
         }
     }
     private void appendMcmodInfo(ModMetadata metadata, InputStream stream) throws IOException {
-        McmodInfo info = McmodInfo.get(stream);
+        Object event = EVENTS.beginMcmodInfo();
+        CountingInputStream countingStream = new CountingInputStream(stream);
+        McmodInfo info = McmodInfo.get(countingStream);
+        EVENTS.endMcmodInfo(event, name != null ? name : budget.jar, countingStream.getByteCount(),
+                info != null && info.modList != null ? info.modList.size() : 0);
         if (info != null && info.modList != null) {
             for (McmodInfo.Entry entry : info.modList) {
                 if (entry.modid == null || "examplemod".equals(entry.modid) /* You have no idea how many mods do this */) {
@@ -294,48 +580,258 @@ public class ModAnalyzer {
         }
     }
 
-    private void appendClassInfo(ModMetadata metadata, InputStream stream) throws IOException {
+    private void appendClassInfo(ModMetadata metadata, ZipEntry entry, InputStream stream) throws IOException {
+        appendClassInfo(metadata, entry, stream, directScan);
+    }
+
+    private void appendClassInfo(final ModMetadata metadata, ZipEntry entry, InputStream stream, ClassScan scan) throws IOException {
+        final String name = entry.getName();
         try {
-            ClassVisitor visitor = new ModClassVisitor(metadata);
-            ClassReader reader = new ClassReader(stream);
-            reader.accept(visitor, 0);
-        } catch (Exception e) {
-            // Oh well.
+            ClassVisitor visitor = new ModClassVisitor(metadata, scan);
+            ReadBuffers buffers = ReadBuffers.get();
+            byte[] data = buffers.read(stream, entry.getSize());
+            ClassReader reader = new ClassReader(data, 0, buffers.length());
+            // method code is only needed for the heuristic keys
+            int flags = ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+            reader.accept(visitor, versionHeuristics || generateSignature ? flags : flags | ClassReader.SKIP_CODE);
+        } catch (AnalysisLimitException e) {
+            throw e;
+        } catch (final Exception e) {
+            // Oh well - note it down and carry on with the other classes.
+            scan.apply(new Runnable() {
+                @Override
+                public void run() {
+                    appendError(metadata, name + ": " + e.toString());
+                }
+            });
+        }
+    }
+
+    private void appendError(ModMetadata metadata, String error) {
+        if (metadata.errors == null || metadata.errors.size() < MAX_ERRORS) {
+            metadata.errors = StringUtils.append(metadata.errors, error);
         }
     }
 
     public ModMetadata analyze() {
+        long allocated = -1;
+        if (statistics != null) {
+            statistics.jarStarted(file.toString());
+            allocated = ScanStatistics.threadAllocatedBytes();
+        }
+
         try {
-            return analyze(new ZipInputStream(new FileInputStream(file)));
+            // without classes to parse, a ZipFile lets only the manifest, mcmod.info and nested jars be inflated; everything else is skipped unread
+            if (!scanClasses || (classExecutor != null && file.length() >= splitThreshold)) {
+                try (ZipFile zipFile = new ZipFile(file)) {
+                    if (statistics != null) {
+                        statistics.bytesRead(file.length());
+                    }
+                    return analyze(zipFile);
+                } catch (ZipException e) {
+                    // ZipInputStream is more lenient about broken archives, let it have a go
+                }
+            }
+
+            try (InputStream stream = new FileInputStream(file);
+                 ZipInputStream zipStream = new ZipInputStream(statistics != null ? statistics.countingStream(stream) : stream)) {
+                return analyze(zipStream);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (statistics != null) {
+                statistics.bytesAllocatedSince(allocated);
+                statistics.jarCompleted(file.toString());
+            }
+        }
+    }
+
+    /**
+     * @return The result for a mod which could not be analyzed at all due to a limit.
+     */
+    public static ModMetadata createLimitResult(String name, AnalysisLimitException exception) {
+        ModMetadata metadata = new ModMetadata();
+        metadata.filename = name;
+        metadata.incomplete = exception.getLimit().getId();
+        metadata.errors = StringUtils.append(null, exception.getMessage());
+        return metadata;
+    }
+
+    public ModMetadata analyze(byte[] data) {
+        return analyze(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Analyzes a mod held in memory, between the buffer's position and limit.
+     * The buffer itself is left untouched.
+     */
+    public ModMetadata analyze(ByteBuffer data) {
+        String id = name != null ? name : "<memory>";
+        long allocated = -1;
+        if (statistics != null) {
+            statistics.jarStarted(id);
+            allocated = ScanStatistics.threadAllocatedBytes();
+        }
+
+        InputStream stream = new ByteBufferInputStream(data.duplicate());
+        ZipInputStream zipStream = new ZipInputStream(statistics != null ? statistics.countingStream(stream) : stream);
+        try {
+            ModMetadata metadata = analyze(zipStream);
+            if (metadata != null && generateHash) {
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                digest.update(data.duplicate());
+                metadata.sha256 = Hex.encodeHexString(digest.digest());
+            }
+            return metadata;
+        } finally {
+            IOUtils.closeQuietly(zipStream);
+            if (statistics != null) {
+                statistics.bytesAllocatedSince(allocated);
+                statistics.jarCompleted(id);
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Analyzes a mod hosted over HTTP. Only the entries analysis looks at
+     * are fetched, so no hash can be generated.
+     */
+    public ModMetadata analyze(RemoteZip zip) {
+        String id = name != null ? name : zip.getUrl().toString();
+        long allocated = -1;
+        if (statistics != null) {
+            statistics.jarStarted(id);
+            allocated = ScanStatistics.threadAllocatedBytes();
+        }
+
+        try (InputStream stream = zip.openEntries(new Predicate<String>() {
+                 @Override
+                 public boolean test(String entryName) {
+                     return isAnalyzedEntry(entryName);
+                 }
+             });
+             ZipInputStream zipStream = new ZipInputStream(statistics != null ? statistics.countingStream(stream) : stream)) {
+            return analyze(zipStream);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            if (statistics != null) {
+                statistics.bytesAllocatedSince(allocated);
+                statistics.jarCompleted(id);
+            }
+        }
+    }
+
+    /**
+     * @return Whether analysis at this analyzer's level reads the entry with
+     * this name at all; everything else is skipped.
+     */
+    public boolean isAnalyzedEntry(String name) {
+        return (scanClasses && name.endsWith(".class")) || name.equals("mcmod.info") || name.endsWith(".zip") || name.endsWith(".jar")
+                || name.equals("META-INF/MANIFEST.MF");
+    }
+
+    /**
+     * Reads and discards the rest of the stream. IOUtils.skip() would read
+     * into a buffer shared by all threads, and ZipInputStream computes entry
+     * checksums over whatever it reads into, so analyzers running in
+     * parallel would corrupt each other's checksums.
+     */
+    private static void drain(InputStream stream) throws IOException {
+        byte[] buffer = DRAIN_BUFFER.get();
+        while (stream.read(buffer, 0, buffer.length) >= 0) {
+            // discard
         }
     }
 
     public ModMetadata analyze(ZipInputStream stream) {
+        if (depth == 0) {
+            budget = new Budget(getJarName(), limits);
+        }
+        Object event = beginEvent();
+        long inflatedBytes = budget.inflatedBytes.get();
+        ModMetadata metadata = null;
+        try {
+            metadata = readEntries(stream);
+            return metadata;
+        } finally {
+            endEvent(event, inflatedBytes, metadata);
+        }
+    }
+
+    private ModMetadata readEntries(ZipInputStream stream) {
         List<ModMetadata> recursiveMods = new ArrayList<>();
         ModMetadata metadata = new ModMetadata();
-        if (isVerbose) {
+        AnalysisLimitException limitException = null;
+        if (isVerbose && file != null) {
             System.err.println("[*] " + file.toString());
         }
 
         try {
+            InputStream entryStream = budget.track(stream);
             ZipEntry entry;
             while ((entry = stream.getNextEntry()) != null) {
-                if (entry.getName().equals("mcmod.info")) {
-                    appendMcmodInfo(metadata, stream);
-                } else if (entry.getName().endsWith(".class")) {
-                    appendClassInfo(metadata, stream);
-                } else if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) {
-                    ModMetadata meta = Main.analyzer(null).analyze(new ZipInputStream(stream));
-                    if (meta != null && meta.valid) {
-                        recursiveMods.add(meta);
+                budget.onEntry();
+                if (entry.getName().endsWith(".class")) {
+                    classCount++;
+                    addClassName(entry.getName());
+                    if (scanClasses) {
+                        appendClassInfo(metadata, entry, entryStream);
                     }
-                } else if (entry.getName().equals("META-INF/MANIFEST.MF")) {
-                    appendManifest(metadata, stream);
+                } else {
+                    appendEntry(metadata, recursiveMods, entry, entryStream);
                 }
+
+                // Drain what is left through the tracked stream, so that skipped entries count towards the limits, too.
+                drain(entryStream);
             }
+        } catch (AnalysisLimitException exception) {
+            if (depth > 0) {
+                // let the top-level jar decide what to report
+                throw exception;
+            }
+            limitException = exception;
         } catch (ZipException exception) {
             return null;
         } catch (IOException exception) {
@@ -343,6 +839,238 @@ public class ModAnalyzer {
             return null;
         }
 
+        return finish(metadata, recursiveMods, limitException);
+    }
+
+    /**
+     * Analyzes a top-level jar with its classes parsed on the class executor,
+     * CLASSES_PER_TASK at a time, if they are parsed at all. Everything else is read on this thread, and
+     * what the classes contribute to the metadata is applied in archive order,
+     * so the result matches that of a sequential scan.
+     */
+    private ModMetadata analyze(ZipFile zipFile) {
+        budget = new Budget(getJarName(), limits);
+        Object event = beginEvent();
+        ModMetadata metadata = null;
+        try {
+            metadata = readEntries(zipFile);
+            return metadata;
+        } finally {
+            endEvent(event, 0, metadata);
+        }
+    }
+
+    private ModMetadata readEntries(final ZipFile zipFile) {
+        List<ModMetadata> recursiveMods = new ArrayList<>();
+        ModMetadata metadata = new ModMetadata();
+        AnalysisLimitException limitException = null;
+        if (isVerbose) {
+            System.err.println("[*] " + file.toString());
+        }
+
+        List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+        List<CompletableFuture<List<ClassScan>>> tasks = new ArrayList<>();
+        List<Set<String>> taskKeys = new ArrayList<>();
+        List<VersionHints> taskHints = new ArrayList<>();
+        List<ZipEntry> classes = new ArrayList<>();
+        for (ZipEntry entry : entries) {
+            if (entry.getName().endsWith(".class")) {
+                if (scanClasses) {
+                    classes.add(entry);
+                }
+                classCount++;
+            }
+        }
+        for (int i = 0; i < classes.size(); i += CLASSES_PER_TASK) {
+            Set<String> k = new HashSet<>();
+            VersionHints h = new VersionHints();
+            taskKeys.add(k);
+            taskHints.add(h);
+            tasks.add(parseClasses(zipFile, metadata, classes.subList(i, Math.min(i + CLASSES_PER_TASK, classes.size())), k, h));
+        }
+
+        try {
+            int classIndex = 0;
+            for (ZipEntry entry : entries) {
+                budget.onEntry();
+                if (entry.getName().endsWith(".class")) {
+                    addClassName(entry.getName());
+                    if (!scanClasses) {
+                        continue;
+                    }
+                    int task = classIndex / CLASSES_PER_TASK;
+                    join(tasks.get(task)).get(classIndex % CLASSES_PER_TASK).replay();
+                    if (taskKeys.get(task) != null) {
+                        // score the task's keys as soon as it is done, rather than keeping them all until the end
+                        addKeys(taskKeys.set(task, null));
+                    }
+                    classIndex++;
+                } else if (isAnalyzedEntry(entry.getName())) {
+                    // assets and other entries nothing looks at are never opened, let alone inflated
+                    try (InputStream entryStream = budget.track(zipFile.getInputStream(entry))) {
+                        appendEntry(metadata, recursiveMods, entry, entryStream);
+                        drain(entryStream);
+                    }
+                }
+            }
+        } catch (AnalysisLimitException exception) {
+            limitException = exception;
+        } catch (ZipException exception) {
+            return null;
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            return null;
+        } finally {
+            // don't leave tasks reading from the jar once it's closed
+            budget.cancelled = true;
+            for (CompletableFuture<List<ClassScan>> task : tasks) {
+                try {
+                    task.join();
+                } catch (CompletionException e) {
+                    // already reported, or not needed
+                }
+            }
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!tasks.get(i).isCompletedExceptionally()) {
+                if (taskKeys.get(i) != null) {
+                    addKeys(taskKeys.get(i));
+                }
+                versionHints.addAll(taskHints.get(i));
+            }
+        }
+
+        return finish(metadata, recursiveMods, limitException);
+    }
+
+    private CompletableFuture<List<ClassScan>> parseClasses(final ZipFile zipFile, final ModMetadata metadata, final List<ZipEntry> entries,
+                                                           final Set<String> taskKeys, final VersionHints taskHints) {
+        return CompletableFuture.supplyAsync(new Supplier<List<ClassScan>>() {
+            @Override
+            public List<ClassScan> get() {
+                long allocated = statistics != null ? ScanStatistics.threadAllocatedBytes() : -1;
+                Object event = EVENTS.beginClassBatch();
+                long inflatedBytes = 0;
+                List<ClassScan> scans = new ArrayList<>(entries.size());
+                for (ZipEntry entry : entries) {
+                    ClassScan scan = new ClassScan(new Consumer<String>() {
+                        @Override
+                        public void accept(String key) {
+                            taskKeys.add(key);
+                        }
+                    }, taskHints, true);
+                    if (!budget.cancelled) {
+                        try (InputStream stream = budget.track(zipFile.getInputStream(entry))) {
+                            appendClassInfo(metadata, entry, stream, scan);
+                            drain(stream);
+                            inflatedBytes += Math.max(0, entry.getSize());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    scans.add(scan);
+                }
+                EVENTS.endClassBatch(event, budget.jar, entries.size(), inflatedBytes, taskKeys.size());
+                if (statistics != null) {
+                    statistics.bytesAllocatedSince(allocated);
+                }
+                return scans;
+            }
+        }, classExecutor);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AnalysisLimitException) {
+                throw (AnalysisLimitException) e.getCause();
+            } else if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void appendEntry(ModMetadata metadata, List<ModMetadata> recursiveMods, ZipEntry entry, InputStream entryStream) throws IOException {
+        String name = entry.getName();
+        if (name.equals("mcmod.info")) {
+            appendMcmodInfo(metadata, entryStream);
+        } else if (name.endsWith(".zip") || name.endsWith(".jar")) {
+            if (limits.getMaxNestingDepth() > 0 && depth >= limits.getMaxNestingDepth()) {
+                if (budget.skippedNested == null) {
+                    budget.skippedNested = name;
+                }
+            } else {
+                // closing the nested stream releases its Inflater right away, rather than whenever the GC gets to it
+                try (ZipInputStream nestedStream = new ZipInputStream(new CloseShieldInputStream(entryStream))) {
+                    ModMetadata meta = createNested().setName(name).analyze(nestedStream);
+                    if (meta != null && meta.valid) {
+                        recursiveMods.add(meta);
+                    }
+                }
+            }
+        } else if (name.equals("META-INF/MANIFEST.MF")) {
+            appendManifest(metadata, entryStream, entry.getSize());
+        }
+    }
+
+    /**
+     * Passes a key found in a class on to the scorer, which only keeps its
+     * hash until the jar is done.
+     */
+    private void addKey(String key) {
+        if (versionHeuristics) {
+            if (scorer == null) {
+                scorer = new KeyScorer(MCP);
+            }
+            scorer.add(key);
+        }
+        if (generateSignature) {
+            getSignature().add('K', key);
+        }
+    }
+
+    private void addClassName(String entryName) {
+        if (generateSignature) {
+            getSignature().add('C', entryName.substring(0, entryName.length() - ".class".length()));
+        }
+    }
+
+    private MinHash getSignature() {
+        if (signature == null) {
+            signature = new MinHash();
+        }
+        return signature;
+    }
+
+    private void addKeys(Collection<String> keys) {
+        for (String key : keys) {
+            addKey(key);
+        }
+    }
+
+    private String getJarName() {
+        return file != null ? file.toString() : (name != null ? name : "<memory>");
+    }
+
+    private Object beginEvent() {
+        return depth == 0 ? EVENTS.beginJar() : EVENTS.beginNestedArchive();
+    }
+
+    private void endEvent(Object event, long inflatedBytesBefore, ModMetadata metadata) {
+        long inflatedBytes = budget.inflatedBytes.get() - inflatedBytesBefore;
+        String modid = metadata != null ? metadata.modid : null;
+        if (depth == 0) {
+            EVENTS.endJar(event, budget.jar, file != null ? file.length() : -1, inflatedBytes, classCount, modid, heuristicVersion);
+        } else {
+            EVENTS.endNestedArchive(event, budget.jar, name, depth, inflatedBytes, classCount, modid);
+        }
+    }
+
+    private ModMetadata finish(ModMetadata metadata, List<ModMetadata> recursiveMods, AnalysisLimitException limitException) {
+
         if (!metadata.valid) {
             if (recursiveMods.size() == 1) {
                 metadata = recursiveMods.get(0);
@@ -390,13 +1118,35 @@ public class ModAnalyzer {
             }
         }
 
-        if (versionHeuristics) {
+        if (depth == 0) {
+            if (limitException != null) {
+                metadata.incomplete = limitException.getLimit().getId();
+                appendError(metadata, limitException.getMessage());
+            } else if (budget.skippedNested != null) {
+                metadata.incomplete = AnalysisLimitException.Limit.NESTING_DEPTH.getId();
+                appendError(metadata, budget.skippedNested + ": nesting depth limit (" + limits.getMaxNestingDepth() + ") exceeded, skipped");
+            }
+        }
+
+        // a mod found in a wrapper jar keeps its own signature
+        if (signature != null && metadata.signature == null) {
+            metadata.signature = MinHash.encode(signature.getSignature());
+        }
+
+        if (versionHeuristics && (limitException == null || limitException.getLimit() != AnalysisLimitException.Limit.TIME)) {
             if (metadata.side == null || metadata.dependencies == null || !metadata.dependencies.containsKey("minecraft")
                     || metadata.dependencies.get("minecraft").equals("*")) {
                 Set<String> versions = new HashSet<>();
                 String version;
                 boolean hasClient = false, hasServer = false;
-                Collection<String> heuristicVersions = MCP.getVersionsForKeySet(keys);
+                if (metadata.dependencies != null && metadata.dependencies.containsKey("minecraft")) {
+                    versionHints.addMinecraftVersion(metadata.dependencies.get("minecraft"));
+                }
+                Object event = EVENTS.beginScoring();
+                KeyScorer keyScorer = scorer != null ? scorer : new KeyScorer(MCP);
+                Collection<String> heuristicVersions = keyScorer.getVersions(versionHints);
+                EVENTS.endScoring(event, name != null ? name : budget.jar, keyScorer.getKeyCount(), keyScorer.getMatchedKeyCount(),
+                        heuristicVersions != null ? String.join(",", heuristicVersions) : null);
                 if (heuristicVersions != null) {
                     for (String s : heuristicVersions) {
                         if (s.endsWith("-client")) {
@@ -427,22 +1177,34 @@ public class ModAnalyzer {
                     metadata.valid = true;
                     metadata.side = side;
                     metadata.dependencies = addDependency(metadata.dependencies, "minecraft@" + version);
+                    heuristicVersion = version;
+                } else if (similarityIndex != null && metadata.signature != null) {
+                    String guess = similarityIndex.guessMinecraftVersion(MinHash.decode(metadata.signature), GUESS_SIMILARITY);
+                    if (guess != null) {
+                        if (metadata.side == null && !MCP.hasSides(guess)) {
+                            metadata.side = "universal";
+                        }
+                        metadata.dependencies = addDependency(metadata.dependencies, "minecraft@" + guess);
+                        metadata.minecraftGuessed = true;
+                        heuristicVersion = guess;
+                    }
                 }
             }
         }
 
-        if (generateHash) {
-            try {
-                metadata.sha256 = DigestUtils.sha256Hex(new FileInputStream(file));
+        if (generateHash && file != null) {
+            try (InputStream hashStream = new FileInputStream(file)) {
+                metadata.sha256 = DigestUtils.sha256Hex(hashStream);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
         if (storeFilenames) {
-            metadata.filename = file.getName();
+            metadata.filename = name;
         }
 
+        metadata.level = getLevel().getId();
         return metadata;
     }
 }
@@ -25,9 +25,18 @@ public class ModMetadata {
     public String name, description, version, homepage;
     public String side;
     public String filename, sha256;
+    /** A MinHash signature of the class names and heuristic keys, as made by MinHash.encode(). */
+    public String signature;
     public List<String> authors;
     public Map<String, String> dependencies;
+    /** True if the Minecraft dependency was guessed from similar mods in a SimilarityIndex. */
+    public Boolean minecraftGuessed;
     public boolean hasCoremod;
+    /** The AnalysisLevel id the mod was analyzed at. */
+    public String level;
+    /** Set to the AnalysisLimitException.Limit id if analysis was cut short. */
+    public String incomplete;
+    public List<String> errors;
 
     public transient boolean valid;
 }
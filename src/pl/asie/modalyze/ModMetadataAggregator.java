@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.util.*;
+
+/**
+ * Groups analysis results for output. Mods without an ID or version are kept
+ * aside and only given their "UNKNOWN-n" keys when the result is built, so
+ * adding is constant-time and partial aggregates from separate workers can be
+ * merged without renumbering anything.
+ */
+public class ModMetadataAggregator {
+    public enum Mode {
+        /** filename -> mod */
+        FILENAME,
+        /** modid -> [mods, sorted by version] */
+        ID,
+        /** modid -> version -> mod */
+        ID_VERSION
+    }
+
+    private static class Group {
+        private final Map<String, ModMetadata> versions = new HashMap<>();
+        private final List<ModMetadata> unknownVersions = new ArrayList<>();
+        private final List<VersionedMod> sorted = new ArrayList<>();
+    }
+
+    private static class VersionedMod implements Comparable<VersionedMod> {
+        private final VersionKey key;
+        private final ModMetadata metadata;
+
+        VersionedMod(ModMetadata metadata) {
+            this.key = metadata.version != null ? new VersionKey(metadata.version) : null;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public int compareTo(VersionedMod other) {
+            if (key == null || other.key == null) {
+                // mods without a version go first
+                return key == other.key ? 0 : (key == null ? -1 : 1);
+            }
+            return key.compareTo(other.key);
+        }
+    }
+
+    private final Mode mode;
+    private final boolean includeUnknown;
+    private final Map<String, ModMetadata> byFilename = new HashMap<>();
+    private final Map<String, Group> byId = new HashMap<>();
+    private final List<ModMetadata> unknownIds = new ArrayList<>();
+    private ModMetadata first;
+    private int size;
+
+    public ModMetadataAggregator(Mode mode, boolean includeUnknown) {
+        this.mode = mode;
+        this.includeUnknown = includeUnknown;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ModMetadata getFirst() {
+        return first;
+    }
+
+    public void add(ModMetadata m) {
+        if (m == null) {
+            return;
+        }
+
+        if (first == null) {
+            first = m;
+        }
+        size++;
+
+        switch (mode) {
+            case FILENAME:
+                byFilename.put(m.filename, m);
+                break;
+            case ID:
+                if (m.modid != null) {
+                    getGroup(m.modid).sorted.add(new VersionedMod(m));
+                } else if (includeUnknown) {
+                    unknownIds.add(m);
+                }
+                break;
+            case ID_VERSION:
+                if (m.modid == null) {
+                    if (includeUnknown) {
+                        unknownIds.add(m);
+                    }
+                } else if (m.version != null) {
+                    getGroup(m.modid).versions.put(m.version, m);
+                } else if (includeUnknown) {
+                    getGroup(m.modid).unknownVersions.add(m);
+                } else {
+                    getGroup(m.modid);
+                }
+                break;
+        }
+    }
+
+    public void addAll(Collection<ModMetadata> mods) {
+        for (ModMetadata m : mods) {
+            add(m);
+        }
+    }
+
+    /**
+     * Merges another aggregator into this one. The other aggregator must use
+     * the same mode and should not be used afterwards.
+     */
+    public void merge(ModMetadataAggregator other) {
+        if (other.mode != mode || other.includeUnknown != includeUnknown) {
+            throw new IllegalArgumentException("Cannot merge aggregators with different settings!");
+        }
+
+        if (first == null) {
+            first = other.first;
+        }
+        size += other.size;
+        byFilename.putAll(other.byFilename);
+        unknownIds.addAll(other.unknownIds);
+        for (Map.Entry<String, Group> entry : other.byId.entrySet()) {
+            Group group = getGroup(entry.getKey());
+            group.versions.putAll(entry.getValue().versions);
+            group.unknownVersions.addAll(entry.getValue().unknownVersions);
+            group.sorted.addAll(entry.getValue().sorted);
+        }
+    }
+
+    public Map<String, ?> getResult() {
+        switch (mode) {
+            case FILENAME:
+                return byFilename;
+            case ID: {
+                Map<String, List<ModMetadata>> result = new HashMap<>();
+                for (Map.Entry<String, Group> entry : byId.entrySet()) {
+                    result.put(entry.getKey(), toSortedList(entry.getValue().sorted));
+                }
+                UnknownKeys keys = new UnknownKeys(result.keySet());
+                for (ModMetadata m : unknownIds) {
+                    result.put(keys.next(), Collections.singletonList(m));
+                }
+                return result;
+            }
+            case ID_VERSION:
+            default: {
+                Map<String, Map<String, ModMetadata>> result = new HashMap<>();
+                for (Map.Entry<String, Group> entry : byId.entrySet()) {
+                    Group group = entry.getValue();
+                    Map<String, ModMetadata> versions = new HashMap<>(group.versions);
+                    UnknownKeys keys = new UnknownKeys(versions.keySet());
+                    for (ModMetadata m : group.unknownVersions) {
+                        versions.put(keys.next(), m);
+                    }
+                    result.put(entry.getKey(), versions);
+                }
+                UnknownKeys keys = new UnknownKeys(result.keySet());
+                for (ModMetadata m : unknownIds) {
+                    Map<String, ModMetadata> versions = new HashMap<>();
+                    versions.put(m.version != null ? m.version : "UNKNOWN-0", m);
+                    result.put(keys.next(), versions);
+                }
+                return result;
+            }
+        }
+    }
+
+    private Group getGroup(String modid) {
+        Group group = byId.get(modid);
+        if (group == null) {
+            group = new Group();
+            byId.put(modid, group);
+        }
+        return group;
+    }
+
+    private static List<ModMetadata> toSortedList(List<VersionedMod> mods) {
+        Collections.sort(mods);
+        List<ModMetadata> list = new ArrayList<>(mods.size());
+        for (VersionedMod m : mods) {
+            list.add(m.metadata);
+        }
+        return list;
+    }
+
+    /**
+     * Hands out "UNKNOWN-0", "UNKNOWN-1", ... while skipping keys which are
+     * already taken. The counter only moves forward, so this is amortized O(1).
+     */
+    private static class UnknownKeys {
+        private final Set<String> taken;
+        private int next;
+
+        UnknownKeys(Set<String> taken) {
+            this.taken = taken;
+        }
+
+        String next() {
+            String key;
+            do {
+                key = "UNKNOWN-" + (next++);
+            } while (taken.contains(key));
+            return key;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the mods out of a modpack archive (.zip, .tar, .tar.gz/.tgz) without
+ * extracting it. ZIP entries are read and inflated by the workers themselves,
+ * as ZipFile allows random access; tarballs can only be read in order, so
+ * they are read on the calling thread and only the analysis is parallel.
+ * Results are named "archive!/path/in/archive.jar".
+ */
+public class ModpackArchive {
+    private final File file;
+    private final AsyncModAnalyzer analyzer;
+    private final AnalysisLimits limits;
+    private final int maxInFlight;
+
+    public ModpackArchive(File file, AsyncModAnalyzer analyzer, AnalysisLimits limits, int maxInFlight) {
+        this.file = file;
+        this.analyzer = analyzer;
+        this.limits = limits;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    static boolean isTar(String name) {
+        return name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    private static boolean isModEntry(String name) {
+        return name.endsWith(".jar") || name.endsWith(".zip");
+    }
+
+    /**
+     * A .zip counts as a modpack if it contains jars or zips, but no classes
+     * or mcmod.info of its own - otherwise it is a mod (possibly with
+     * bundled jars) and analyzed as such.
+     */
+    public static boolean isModpack(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (isTar(name)) {
+            return file.isFile();
+        } else if (!name.endsWith(".zip") || !file.isFile()) {
+            return false;
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            boolean hasMods = false;
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String entryName = entries.nextElement().getName();
+                if (entryName.endsWith(".class") || entryName.equals("mcmod.info")) {
+                    return false;
+                }
+                hasMods |= isModEntry(entryName);
+            }
+            return hasMods;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The results for every mod in the archive, in archive order.
+     * Entries which could not be read as mods are left out.
+     */
+    public List<ModMetadata> analyze() throws IOException {
+        List<CompletableFuture<ModMetadata>> futures = isTar(file.getName().toLowerCase(Locale.ROOT)) ? submitTar() : submitZip();
+
+        List<ModMetadata> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<ModMetadata> future : futures) {
+            ModMetadata metadata = future.join();
+            if (metadata != null) {
+                results.add(metadata);
+            }
+        }
+        return results;
+    }
+
+    private String getName(String entryName) {
+        while (entryName.startsWith("./") || entryName.startsWith("/")) {
+            entryName = entryName.substring(entryName.indexOf('/') + 1);
+        }
+        return file.getName() + "!/" + entryName;
+    }
+
+    private List<CompletableFuture<ModMetadata>> submitZip() throws IOException {
+        final ZipFile zipFile = new ZipFile(file);
+        List<CompletableFuture<ModMetadata>> futures = new ArrayList<>();
+
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !isModEntry(entry.getName())) {
+                    continue;
+                }
+
+                // Workers only read their entry once they start, so submitting everything up front holds no data.
+                futures.add(analyzer.analyze(getName(entry.getName()), new Supplier<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer get() {
+                        try (InputStream stream = zipFile.getInputStream(entry)) {
+                            return read(stream, entry.getSize());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }));
+            }
+        } finally {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).handle(new BiFunction<Void, Throwable, Void>() {
+                @Override
+                public Void apply(Void v, Throwable t) {
+                    try {
+                        zipFile.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        return futures;
+    }
+
+    private List<CompletableFuture<ModMetadata>> submitTar() throws IOException {
+        List<CompletableFuture<ModMetadata>> futures = new ArrayList<>();
+        // Entries read ahead of the workers are held in memory, so only so many may wait at once.
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        InputStream fileStream = new BufferedInputStream(new FileInputStream(file), 65536);
+        try (InputStream stream = file.getName().toLowerCase(Locale.ROOT).endsWith(".tar") ? fileStream : new GZIPInputStream(fileStream, 65536)) {
+            TarReader reader = new TarReader(stream);
+            TarReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                if (!entry.isFile || !isModEntry(entry.name)) {
+                    continue;
+                }
+
+                final ByteBuffer data;
+                try {
+                    data = read(reader.getEntryStream(), entry.size);
+                } catch (AnalysisLimitException e) {
+                    futures.add(CompletableFuture.completedFuture(ModAnalyzer.createLimitResult(getName(entry.name), e)));
+                    continue;
+                }
+
+                inFlight.acquireUninterruptibly();
+                futures.add(analyzer.analyze(getName(entry.name), new Supplier<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer get() {
+                        return data;
+                    }
+                }).whenComplete(new BiConsumer<ModMetadata, Throwable>() {
+                    @Override
+                    public void accept(ModMetadata metadata, Throwable throwable) {
+                        inFlight.release();
+                    }
+                }));
+            }
+        }
+
+        return futures;
+    }
+
+    private ByteBuffer read(InputStream stream, long size) throws IOException {
+        long max = limits.getMaxInflatedBytes() > 0 ? Math.min(limits.getMaxInflatedBytes(), Integer.MAX_VALUE - 8) : Integer.MAX_VALUE - 8;
+        if (size > max) {
+            throw new AnalysisLimitException(AnalysisLimitException.Limit.INFLATED_BYTES, "Inflated size limit (" + max + " bytes) exceeded");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 65536);
+        byte[] buffer = new byte[65536];
+        int n;
+        long total = 0;
+        while ((n = stream.read(buffer)) > 0) {
+            total += n;
+            if (total > max) {
+                throw new AnalysisLimitException(AnalysisLimitException.Limit.INFLATED_BYTES, "Inflated size limit (" + max + " bytes) exceeded");
+            }
+            out.write(buffer, 0, n);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Just enough of a tar reader for modpacks: ustar and GNU long names,
+     * pax path records, and octal or base-256 sizes.
+     */
+    static final class TarReader {
+        // real long names and pax records are a few hundred bytes at most
+        private static final int MAX_EXTENDED_HEADER_SIZE = 1024 * 1024;
+
+        static final class Entry {
+            final String name;
+            final long size;
+            final boolean isFile;
+
+            Entry(String name, long size, boolean isFile) {
+                this.name = name;
+                this.size = size;
+                this.isFile = isFile;
+            }
+        }
+
+        private final InputStream stream;
+        private final byte[] header = new byte[512];
+        private long remaining, padding;
+
+        TarReader(InputStream stream) {
+            this.stream = stream;
+        }
+
+        Entry next() throws IOException {
+            skipFully(remaining + padding);
+            remaining = padding = 0;
+
+            String longName = null;
+            boolean skipEntry = false;
+            while (true) {
+                if (!readFully(header) || isZero(header)) {
+                    return null;
+                }
+
+                String name = getString(0, 100);
+                long size = getSize();
+                if (size < 0) {
+                    throw new IOException("Invalid tar entry size " + size);
+                }
+                char type = (char) header[156];
+                if ("ustar".equals(getString(257, 5)) && header[345] != 0) {
+                    name = getString(345, 155) + "/" + name;
+                }
+                long pad = (512 - (size % 512)) % 512;
+
+                if (type == 'L' || type == 'x') {
+                    // GNU long name, or pax extended header; both describe the next entry
+                    if (size > MAX_EXTENDED_HEADER_SIZE) {
+                        System.err.println("[WARN] Skipping tar entry with a " + size + "-byte extended header!");
+                        skipFully(size + pad);
+                        skipEntry = true;
+                        continue;
+                    }
+                    byte[] data = new byte[(int) size];
+                    if (!readFully(data)) {
+                        return null;
+                    }
+                    skipFully(pad);
+                    String text = new String(data, StandardCharsets.UTF_8);
+                    if (type == 'L') {
+                        longName = trimNul(text);
+                    } else {
+                        String path = getPaxPath(text);
+                        if (path != null) {
+                            longName = path;
+                        }
+                    }
+                    continue;
+                }
+
+                if (skipEntry) {
+                    skipFully(size + pad);
+                    longName = null;
+                    skipEntry = false;
+                    continue;
+                }
+
+                remaining = size;
+                padding = pad;
+                return new Entry(longName != null ? longName : name, size, type == '0' || type == 0);
+            }
+        }
+
+        InputStream getEntryStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = stream.read();
+                    if (b >= 0) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int n = stream.read(b, off, (int) Math.min(len, remaining));
+                    if (n > 0) {
+                        remaining -= n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        private long getSize() throws IOException {
+            if ((header[124] & 0x80) != 0) {
+                // base-256, for entries of 8 GiB and up
+                long size = 0;
+                for (int i = 125; i < 136; i++) {
+                    size = (size << 8) | (header[i] & 0xFF);
+                }
+                return size;
+            }
+
+            String octal = getString(124, 12).trim();
+            try {
+                return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid tar entry size " + octal);
+            }
+        }
+
+        private String getString(int offset, int length) {
+            int end = offset;
+            while (end < offset + length && header[end] != 0) {
+                end++;
+            }
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static String getPaxPath(String text) {
+            // records are "<length> <key>=<value>\n"
+            for (String record : text.split("\n")) {
+                int space = record.indexOf(' ');
+                if (space >= 0 && record.startsWith("path=", space + 1)) {
+                    return record.substring(space + 6);
+                }
+            }
+            return null;
+        }
+
+        private static String trimNul(String s) {
+            int i = s.indexOf('\0');
+            return i >= 0 ? s.substring(0, i) : s;
+        }
+
+        private static boolean isZero(byte[] data) {
+            for (byte b : data) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean readFully(byte[] data) throws IOException {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = stream.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    return false;
+                }
+                pos += n;
+            }
+            return true;
+        }
+
+        private void skipFully(long n) throws IOException {
+            while (n > 0) {
+                long skipped = stream.skip(n);
+                if (skipped <= 0) {
+                    if (stream.read() < 0) {
+                        throw new EOFException("Truncated tar archive");
+                    }
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Compares two modpack directories. Files are paired by size and then by
+ * SHA-256 digest first; only files without an identical counterpart on the
+ * other side are analyzed, so the cost scales with what actually changed.
+ *
+ * Changed jars are matched up by mod ID. A mod ID may have several jars,
+ * such as split client and server jars or duplicate copies; those are
+ * matched by path first and then in path order, and the rest are reported
+ * as added or removed.
+ */
+public class ModpackDiff {
+    public static class Result {
+        public List<ModMetadata> added = new ArrayList<>();
+        public List<ModMetadata> removed = new ArrayList<>();
+        public List<Update> updated = new ArrayList<>();
+        /** mod ID -> paths, for mod IDs of which more than one changed jar is in the new directory */
+        public Map<String, List<String>> duplicates;
+        public int unchanged;
+    }
+
+    public static class Update {
+        public String modid;
+        public String oldVersion, newVersion;
+        public String oldFilename, newFilename;
+        public Map<String, String> addedDependencies;
+        public Map<String, String> removedDependencies;
+        /** dependency -> [old version, new version] */
+        public Map<String, List<String>> changedDependencies;
+    }
+
+    private final AsyncModAnalyzer analyzer;
+
+    /**
+     * @param analyzer Used for the files which differ; it decides on
+     *                 heuristics, hashing and parallelism.
+     */
+    public ModpackDiff(AsyncModAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    public Result diff(File oldDir, File newDir) throws IOException {
+        Map<String, File> oldFiles = new TreeMap<>();
+        Map<String, File> newFiles = new TreeMap<>();
+        listFiles(oldDir, "", oldFiles);
+        listFiles(newDir, "", newFiles);
+
+        Result result = new Result();
+        Set<String> oldUnchanged = new HashSet<>();
+        Set<String> newUnchanged = new HashSet<>();
+        pairIdenticalFiles(oldFiles, newFiles, oldUnchanged, newUnchanged);
+        result.unchanged = newUnchanged.size();
+
+        // Submit both sides before waiting on either.
+        Map<String, CompletableFuture<ModMetadata>> oldFutures = submit(oldFiles, oldUnchanged);
+        Map<String, CompletableFuture<ModMetadata>> newFutures = submit(newFiles, newUnchanged);
+        Map<String, List<ModMetadata>> oldMods = collect(oldFutures);
+        Map<String, List<ModMetadata>> newMods = collect(newFutures);
+
+        for (Map.Entry<String, List<ModMetadata>> entry : newMods.entrySet()) {
+            List<ModMetadata> newList = entry.getValue();
+            if (newList.size() > 1) {
+                if (result.duplicates == null) {
+                    result.duplicates = new TreeMap<>();
+                }
+                List<String> filenames = new ArrayList<>();
+                for (ModMetadata metadata : newList) {
+                    filenames.add(metadata.filename);
+                }
+                result.duplicates.put(entry.getKey(), filenames);
+            }
+
+            List<ModMetadata> oldList = oldMods.remove(entry.getKey());
+            if (oldList == null) {
+                result.added.addAll(newList);
+            } else {
+                pair(entry.getKey(), oldList, newList, result);
+            }
+        }
+        for (List<ModMetadata> oldList : oldMods.values()) {
+            result.removed.addAll(oldList);
+        }
+
+        return result;
+    }
+
+    /**
+     * Pairs the old and new jars of one mod ID, by path first and then in
+     * path order; what is left over was added or removed.
+     */
+    private void pair(String key, List<ModMetadata> oldList, List<ModMetadata> newList, Result result) {
+        List<ModMetadata> unpaired = new ArrayList<>();
+        for (ModMetadata newMod : newList) {
+            ModMetadata oldMod = null;
+            for (Iterator<ModMetadata> iterator = oldList.iterator(); iterator.hasNext(); ) {
+                ModMetadata candidate = iterator.next();
+                if (candidate.filename.equals(newMod.filename)) {
+                    oldMod = candidate;
+                    iterator.remove();
+                    break;
+                }
+            }
+
+            if (oldMod != null) {
+                result.updated.add(createUpdate(key, oldMod, newMod));
+            } else {
+                unpaired.add(newMod);
+            }
+        }
+
+        for (ModMetadata newMod : unpaired) {
+            if (!oldList.isEmpty()) {
+                result.updated.add(createUpdate(key, oldList.remove(0), newMod));
+            } else {
+                result.added.add(newMod);
+            }
+        }
+        result.removed.addAll(oldList);
+    }
+
+    private void listFiles(File dir, String prefix, Map<String, File> files) {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+
+        for (File f : list) {
+            if (f.isDirectory()) {
+                listFiles(f, prefix + f.getName() + "/", files);
+            } else {
+                files.put(prefix + f.getName(), f);
+            }
+        }
+    }
+
+    private void pairIdenticalFiles(Map<String, File> oldFiles, Map<String, File> newFiles,
+                                    Set<String> oldUnchanged, Set<String> newUnchanged) throws IOException {
+        Map<Long, List<String>> oldBySize = new HashMap<>();
+        for (Map.Entry<String, File> entry : oldFiles.entrySet()) {
+            long size = entry.getValue().length();
+            List<String> list = oldBySize.get(size);
+            if (list == null) {
+                list = new ArrayList<>();
+                oldBySize.put(size, list);
+            }
+            list.add(entry.getKey());
+        }
+
+        // Only files whose size has a match on the other side are ever hashed.
+        Map<String, String> oldDigests = new HashMap<>();
+        for (Map.Entry<String, File> entry : newFiles.entrySet()) {
+            List<String> candidates = oldBySize.get(entry.getValue().length());
+            if (candidates == null) {
+                continue;
+            }
+
+            String digest = digest(entry.getValue());
+            for (String candidate : candidates) {
+                if (oldUnchanged.contains(candidate)) {
+                    continue;
+                }
+
+                String oldDigest = oldDigests.get(candidate);
+                if (oldDigest == null) {
+                    oldDigest = digest(oldFiles.get(candidate));
+                    oldDigests.put(candidate, oldDigest);
+                }
+                if (oldDigest.equals(digest)) {
+                    oldUnchanged.add(candidate);
+                    newUnchanged.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    private static String digest(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            return DigestUtils.sha256Hex(stream);
+        }
+    }
+
+    private Map<String, CompletableFuture<ModMetadata>> submit(Map<String, File> files, Set<String> skip) {
+        Map<String, CompletableFuture<ModMetadata>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            if (!skip.contains(entry.getKey())) {
+                futures.put(entry.getKey(), analyzer.analyze(entry.getValue().toPath()));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * @return The analyzed mods by mod ID, or by path for mods without one,
+     * each in path order.
+     */
+    private Map<String, List<ModMetadata>> collect(Map<String, CompletableFuture<ModMetadata>> futures) throws IOException {
+        Map<String, List<ModMetadata>> mods = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<ModMetadata>> entry : futures.entrySet()) {
+            ModMetadata metadata;
+            try {
+                metadata = entry.getValue().get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Could not analyze " + entry.getKey(), e);
+            }
+
+            if (metadata != null && metadata.valid) {
+                metadata.filename = entry.getKey();
+                String key = metadata.modid != null ? metadata.modid : "file:" + entry.getKey();
+                List<ModMetadata> list = mods.get(key);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    mods.put(key, list);
+                }
+                list.add(metadata);
+            }
+        }
+        return mods;
+    }
+
+    private Update createUpdate(String key, ModMetadata oldMod, ModMetadata newMod) {
+        Update update = new Update();
+        update.modid = newMod.modid != null ? newMod.modid : key;
+        update.oldVersion = oldMod.version;
+        update.newVersion = newMod.version;
+        update.oldFilename = oldMod.filename;
+        update.newFilename = newMod.filename;
+
+        Map<String, String> oldDeps = oldMod.dependencies != null ? oldMod.dependencies : Collections.<String, String>emptyMap();
+        Map<String, String> newDeps = newMod.dependencies != null ? newMod.dependencies : Collections.<String, String>emptyMap();
+        for (Map.Entry<String, String> entry : newDeps.entrySet()) {
+            String oldVersion = oldDeps.get(entry.getKey());
+            if (oldVersion == null) {
+                if (update.addedDependencies == null) {
+                    update.addedDependencies = new TreeMap<>();
+                }
+                update.addedDependencies.put(entry.getKey(), entry.getValue());
+            } else if (!oldVersion.equals(entry.getValue())) {
+                if (update.changedDependencies == null) {
+                    update.changedDependencies = new TreeMap<>();
+                }
+                update.changedDependencies.put(entry.getKey(), Arrays.asList(oldVersion, entry.getValue()));
+            }
+        }
+        for (Map.Entry<String, String> entry : oldDeps.entrySet()) {
+            if (!newDeps.containsKey(entry.getKey())) {
+                if (update.removedDependencies == null) {
+                    update.removedDependencies = new TreeMap<>();
+                }
+                update.removedDependencies.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return update;
+    }
+}
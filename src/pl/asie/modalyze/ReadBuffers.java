@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A per-thread buffer which ZIP entries are read into, so that parsing a
+ * class does not allocate a new array for its bytes. Each thread keeps at
+ * most MAX_RETAINED bytes between reads, no matter how many jars it reads;
+ * larger entries get a buffer of their own, which is dropped afterwards.
+ */
+final class ReadBuffers {
+    static final int INITIAL_SIZE = 64 * 1024;
+    static final int MAX_RETAINED = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<ReadBuffers> BUFFERS = new ThreadLocal<ReadBuffers>() {
+        @Override
+        protected ReadBuffers initialValue() {
+            return new ReadBuffers();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length, used;
+
+    private ReadBuffers() {
+
+    }
+
+    static ReadBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Reads the rest of the stream. The returned array is only valid until
+     * the next read on this thread; the data is in its first length() bytes.
+     *
+     * @param sizeHint The expected size, such as ZipEntry.getSize(), or -1 if unknown.
+     */
+    byte[] read(InputStream stream, long sizeHint) throws IOException {
+        if (buffer.length > MAX_RETAINED) {
+            buffer = new byte[INITIAL_SIZE];
+            used = 0;
+        }
+        if (sizeHint > buffer.length) {
+            // the size comes from the archive, so don't trust it with more than the retained maximum up front
+            buffer = new byte[(int) Math.min(sizeHint, MAX_RETAINED)];
+            used = 0;
+        }
+
+        length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                // only grow if the stream really goes on, so an exact size hint never doubles the buffer
+                int b = stream.read();
+                if (b < 0) {
+                    break;
+                }
+                grow();
+                buffer[length++] = (byte) b;
+            }
+
+            int n = stream.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+
+        // ASM does not check reads of broken classes against the length, so
+        // don't let it find the previous entry's bytes past the end
+        if (used > length) {
+            Arrays.fill(buffer, length, used, (byte) 0);
+        }
+        used = length;
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void grow() throws IOException {
+        if (buffer.length >= Integer.MAX_VALUE - 8) {
+            throw new EOFException("Entry too large to read");
+        }
+        byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+        used = length;
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.ZipException;
+
+/**
+ * A ZIP file hosted over HTTP, read with range requests. open() fetches the
+ * end of the file and the central directory; openEntries() then fetches
+ * only the entries asked for, with ranges less than maxGap bytes apart
+ * merged into one request, and returns them as a stream ZipInputStream
+ * can read.
+ *
+ * Fetched bytes are kept in a sparse local file. With a cache directory
+ * set it is kept between runs, along with a list of the ranges it holds,
+ * and reused as long as the server reports the same length and ETag (or
+ * Last-Modified date).
+ */
+public class RemoteZip implements Closeable {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int TAIL_SIZE = EOCD_SIZE + 65535;
+    private static final String CACHE_HEADER = "modalyze-ranges 1";
+
+    private static final class Entry {
+        final String name;
+        final long offset;
+        long end;
+
+        Entry(String name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+
+    private final URL url;
+    private File cacheDir;
+    private long maxGap = 64 * 1024;
+    private int timeout = 30000;
+    private int requests;
+    private long bytesFetched;
+
+    private long length = -1;
+    private String validator;
+    private File dataFile, rangesFile;
+    private RandomAccessFile data;
+    // fetched [start, end) ranges, sorted and not touching each other
+    private final List<long[]> ranges = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    public RemoteZip(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * @param dir Where to keep fetched data between runs; null (the default)
+     *            means a temporary file, deleted on close.
+     */
+    public RemoteZip setCacheDir(File dir) {
+        cacheDir = dir;
+        return this;
+    }
+
+    /**
+     * @param bytes How far apart two ranges may be to be fetched in one request.
+     */
+    public RemoteZip setMaxGap(long bytes) {
+        maxGap = bytes;
+        return this;
+    }
+
+    public RemoteZip setTimeout(int millis) {
+        timeout = millis;
+        return this;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The file name at the end of the URL's path.
+     */
+    public String getName() {
+        String path = url.getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return name;
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getRequestCount() {
+        return requests;
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    public List<String> getEntryNames() {
+        List<String> names = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    /**
+     * Fetches the end of central directory record and the central directory.
+     */
+    public void open() throws IOException {
+        HttpURLConnection connection = connect("bytes=-" + TAIL_SIZE, false);
+        try {
+            long start;
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                start = range[0];
+                length = range[2];
+            } else if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                // no range support - this is the whole file, then
+                start = 0;
+                length = connection.getContentLengthLong();
+            } else {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            if (length < 0) {
+                throw new IOException("Length unknown");
+            } else if (length < EOCD_SIZE) {
+                throw new ZipException("Not a ZIP file");
+            }
+
+            String etag = connection.getHeaderField("ETag");
+            validator = etag != null ? etag : connection.getHeaderField("Last-Modified");
+            openData();
+            receive(connection, start, length);
+        } finally {
+            connection.disconnect();
+        }
+
+        long tailStart = Math.max(0, length - TAIL_SIZE);
+        byte[] tail = read(tailStart, (int) (length - tailStart));
+        int eocd = -1;
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == EOCD_SIGNATURE && i + EOCD_SIZE + getShort(tail, i + 20) == tail.length) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long directorySize = getInt(tail, eocd + 12) & 0xFFFFFFFFL;
+        long directoryOffset = getInt(tail, eocd + 16) & 0xFFFFFFFFL;
+        if (directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 archives are not supported");
+        } else if (directoryOffset + directorySize > tailStart + eocd || directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        fetch(Collections.singletonList(new long[] { directoryOffset, directoryOffset + directorySize }));
+        readDirectory(read(directoryOffset, (int) directorySize), directoryOffset);
+    }
+
+    private void readDirectory(byte[] directory, long directoryOffset) throws ZipException {
+        int pos = 0;
+        while (pos + CEN_SIZE <= directory.length && getInt(directory, pos) == CEN_SIGNATURE) {
+            boolean utf8 = (getShort(directory, pos + 8) & 0x800) != 0;
+            int nameLength = getShort(directory, pos + 28);
+            int extraLength = getShort(directory, pos + 30);
+            int commentLength = getShort(directory, pos + 32);
+            long offset = getInt(directory, pos + 42) & 0xFFFFFFFFL;
+            if (pos + CEN_SIZE + nameLength > directory.length || offset >= directoryOffset) {
+                throw new ZipException("Invalid central directory entry");
+            }
+
+            String name = new String(directory, pos + CEN_SIZE, nameLength, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+            entries.add(new Entry(name, offset));
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        // each entry runs up to the next one, which covers any data descriptor after it
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.offset, b.offset);
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).end = i + 1 < sorted.size() ? sorted.get(i + 1).offset : directoryOffset;
+        }
+    }
+
+    /**
+     * Fetches the entries whose names pass the filter, as few requests as
+     * ranges allow.
+     *
+     * @return Their local headers and data, in the order they are in the file.
+     */
+    public InputStream openEntries(Predicate<String> filter) throws IOException {
+        List<long[]> spans = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.end > entry.offset && filter.test(entry.name)) {
+                spans.add(new long[] { entry.offset, entry.end });
+            }
+        }
+        Collections.sort(spans, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        fetch(spans);
+        return new SpanInputStream(spans);
+    }
+
+    private void fetch(List<long[]> spans) throws IOException {
+        List<long[]> batches = new ArrayList<>();
+        for (long[] span : spans) {
+            for (long[] missing : missing(span[0], span[1])) {
+                long[] last = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+                if (last != null && missing[0] - last[1] <= maxGap) {
+                    last[1] = Math.max(last[1], missing[1]);
+                } else {
+                    batches.add(missing);
+                }
+            }
+        }
+
+        try {
+            for (long[] request : batches) {
+                HttpURLConnection connection = connect("bytes=" + request[0] + "-" + (request[1] - 1), true);
+                try {
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("HTTP " + connection.getResponseCode() + " to a range request, the file may have changed");
+                    }
+                    long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                    if (range[0] != request[0] || range[2] != length) {
+                        throw new IOException("Unexpected Content-Range " + connection.getHeaderField("Content-Range"));
+                    }
+                    receive(connection, request[0], request[1]);
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        } finally {
+            if (!batches.isEmpty()) {
+                saveRanges();
+            }
+        }
+    }
+
+    private HttpURLConnection connect(String range, boolean conditional) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty("Range", range);
+        if (conditional && validator != null) {
+            // the whole file comes back instead if it changed since open()
+            connection.setRequestProperty("If-Range", validator);
+        }
+        requests++;
+        return connection;
+    }
+
+    /**
+     * Copies a response body into the data file at the given offset, up to
+     * the given end.
+     */
+    private void receive(HttpURLConnection connection, long start, long end) throws IOException {
+        byte[] buffer = new byte[65536];
+        long pos = start;
+        try (InputStream stream = connection.getInputStream()) {
+            int n;
+            while (pos < end && (n = stream.read(buffer, 0, (int) Math.min(buffer.length, end - pos))) > 0) {
+                data.seek(pos);
+                data.write(buffer, 0, n);
+                pos += n;
+                bytesFetched += n;
+            }
+        } finally {
+            if (pos > start) {
+                addRange(start, pos);
+            }
+        }
+        if (pos < end) {
+            throw new EOFException("Response ended at " + pos + ", expected " + end);
+        }
+    }
+
+    private static long[] parseContentRange(String header) throws IOException {
+        // "bytes 100-199/1000"
+        try {
+            String[] parts = header.substring(header.indexOf(' ') + 1).split("[-/]");
+            return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) + 1, Long.parseLong(parts[2]) };
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid Content-Range: " + header);
+        }
+    }
+
+    private List<long[]> missing(long start, long end) {
+        List<long[]> result = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (range[1] <= start) {
+                continue;
+            } else if (range[0] >= end) {
+                break;
+            }
+            if (range[0] > start) {
+                result.add(new long[] { start, range[0] });
+            }
+            start = Math.max(start, range[1]);
+        }
+        if (start < end) {
+            result.add(new long[] { start, end });
+        }
+        return result;
+    }
+
+    private void addRange(long start, long end) {
+        int i = 0;
+        while (i < ranges.size() && ranges.get(i)[1] < start) {
+            i++;
+        }
+        while (i < ranges.size() && ranges.get(i)[0] <= end) {
+            long[] range = ranges.remove(i);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        ranges.add(i, new long[] { start, end });
+    }
+
+    private void openData() throws IOException {
+        if (cacheDir == null) {
+            dataFile = File.createTempFile("modalyze", ".part");
+        } else {
+            String key = DigestUtils.sha256Hex(url.toString()).substring(0, 32);
+            dataFile = new File(cacheDir, key + ".data");
+            rangesFile = new File(cacheDir, key + ".ranges");
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                throw new IOException("Could not create " + cacheDir);
+            }
+            loadRanges();
+        }
+        data = new RandomAccessFile(dataFile, "rw");
+        if (ranges.isEmpty()) {
+            data.setLength(0);
+        }
+    }
+
+    private void loadRanges() throws IOException {
+        if (!rangesFile.isFile() || !dataFile.isFile()) {
+            return;
+        }
+
+        List<String> lines = FileUtils.readLines(rangesFile, StandardCharsets.UTF_8);
+        if (lines.size() < 3 || !lines.get(0).equals(CACHE_HEADER) || !lines.get(1).equals(Long.toString(length))
+                || validator == null || !lines.get(2).equals(validator)) {
+            // changed, or no way to tell that it hasn't
+            return;
+        }
+        for (String line : lines.subList(3, lines.size())) {
+            String[] parts = line.split(" ");
+            if (parts.length == 2) {
+                long start = Long.parseLong(parts[0]), end = Long.parseLong(parts[1]);
+                if (end <= dataFile.length()) {
+                    addRange(start, end);
+                }
+            }
+        }
+    }
+
+    private void saveRanges() throws IOException {
+        if (rangesFile == null || validator == null) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(ranges.size() + 3);
+        lines.add(CACHE_HEADER);
+        lines.add(Long.toString(length));
+        lines.add(validator);
+        for (long[] range : ranges) {
+            lines.add(range[0] + " " + range[1]);
+        }
+        FileUtils.writeLines(rangesFile, "UTF-8", lines, "\n");
+    }
+
+    private byte[] read(long pos, int len) throws IOException {
+        byte[] buffer = new byte[len];
+        data.seek(pos);
+        data.readFully(buffer);
+        return buffer;
+    }
+
+    private static int getShort(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8);
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return getShort(b, pos) | (getShort(b, pos + 2) << 16);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (data != null) {
+            data.close();
+            data = null;
+        }
+        if (cacheDir == null && dataFile != null) {
+            dataFile.delete();
+        }
+    }
+
+    /**
+     * Reads the given spans of the data file one after another.
+     */
+    private final class SpanInputStream extends InputStream {
+        private final Iterator<long[]> spans;
+        private long pos, end;
+
+        SpanInputStream(List<long[]> spans) {
+            this.spans = spans.iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? (b[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (pos >= end) {
+                if (!spans.hasNext()) {
+                    return -1;
+                }
+                long[] span = spans.next();
+                pos = span[0];
+                end = span[1];
+            }
+
+            data.seek(pos);
+            int n = data.read(b, off, (int) Math.min(len, end - pos));
+            if (n < 0) {
+                throw new EOFException(dataFile + " is shorter than expected");
+            }
+            pos += n;
+            return n;
+        }
+    }
+}
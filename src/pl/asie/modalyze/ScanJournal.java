@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only record of the files a scan has finished, with their
+ * results, so that an interrupted scan can be resumed. Each line is a JSON
+ * object; the first one describes the scan options, and a journal written
+ * with different options is not resumed from.
+ *
+ * Lines are flushed to disk in batches - every SYNC_RECORDS records or
+ * SYNC_MILLIS milliseconds, whichever comes first - so a crash loses at most
+ * one batch. A line cut short by a crash is dropped when resuming.
+ */
+public class ScanJournal implements Closeable {
+    private static final int VERSION = 1;
+    private static final int SYNC_RECORDS = 64;
+    private static final long SYNC_MILLIS = 1000;
+
+    private static class Header {
+        int journal;
+        String options;
+    }
+
+    private static class Record {
+        String file;
+        long size, modified;
+        List<ModMetadata> results;
+    }
+
+    private final Gson gson = JsonAdapters.register(new GsonBuilder()).create();
+    private final Map<String, Record> completed = new HashMap<>();
+    private final FileOutputStream stream;
+    private int pending;
+    private long lastSync = System.nanoTime();
+    private boolean failed;
+
+    /**
+     * @param options A description of the scan options results depend on.
+     * @param resume Whether to keep the results already in the journal;
+     *               otherwise, it is started over.
+     */
+    public ScanJournal(File file, String options, boolean resume) throws IOException {
+        long validLength = resume ? load(file, options) : 0;
+        stream = new FileOutputStream(file, validLength > 0);
+        if (validLength > 0) {
+            // drop a record cut short by a crash, so the next one starts on its own line
+            stream.getChannel().truncate(validLength);
+        } else {
+            Header header = new Header();
+            header.journal = VERSION;
+            header.options = options;
+            writeLine(gson.toJson(header));
+            sync();
+        }
+    }
+
+    private long load(File file, String options) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        byte[] data = FileUtils.readFileToByteArray(file);
+        long validLength = 0;
+        int start = 0;
+        boolean first = true;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            try {
+                if (first) {
+                    Header header = gson.fromJson(line, Header.class);
+                    if (header == null || header.journal != VERSION || !options.equals(header.options)) {
+                        System.err.println("[WARN] Journal " + file + " was written with different options, starting over");
+                        return 0;
+                    }
+                    first = false;
+                } else {
+                    Record record = gson.fromJson(line, Record.class);
+                    if (record != null && record.file != null && record.results != null) {
+                        completed.put(record.file, record);
+                    }
+                }
+            } catch (JsonParseException e) {
+                // only the last line can be broken, by a crash while writing it
+                break;
+            }
+            validLength = start;
+        }
+        return validLength;
+    }
+
+    /**
+     * @return The number of files with results in the journal.
+     */
+    public int size() {
+        return completed.size();
+    }
+
+    /**
+     * @return The journaled results for the file, or null if it has not been
+     * analyzed yet or has changed since.
+     */
+    public List<ModMetadata> get(File file) {
+        Record record = completed.get(file.getAbsolutePath());
+        if (record != null && record.size == file.length() && record.modified == file.lastModified()) {
+            return record.results;
+        }
+        return null;
+    }
+
+    public synchronized void record(File file, List<ModMetadata> results) {
+        if (failed) {
+            return;
+        }
+
+        Record record = new Record();
+        record.file = file.getAbsolutePath();
+        record.size = file.length();
+        record.modified = file.lastModified();
+        record.results = results;
+        try {
+            writeLine(gson.toJson(record));
+            if (++pending >= SYNC_RECORDS || System.nanoTime() - lastSync >= SYNC_MILLIS * 1000000L) {
+                sync();
+            }
+        } catch (IOException e) {
+            // the scan itself can go on without it
+            System.err.println("[WARN] Could not write to journal, no longer journaling: " + e.getMessage());
+            failed = true;
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        stream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized void sync() throws IOException {
+        stream.getChannel().force(false);
+        pending = 0;
+        lastSync = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!failed) {
+                sync();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+}
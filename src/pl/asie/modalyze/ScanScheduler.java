@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.ZipFile;
+
+/**
+ * Runs the analysis of a known list of files on several threads, largest
+ * first. Each file's cost is estimated from its size and entry count, and
+ * the files are dealt out longest-processing-time first: each one goes to
+ * the thread with the least estimated work so far. A thread which runs out
+ * of work steals from the back of the busiest other thread's queue, which
+ * covers for wrong estimates.
+ */
+public class ScanScheduler {
+    public static class Report {
+        public int jars, threads, steals;
+        /** The longest time a single file took. */
+        public double longestSeconds;
+        /** The best possible makespan given how long each file took: max(total / threads, longest). */
+        public double lowerBoundSeconds;
+        public double makespanSeconds;
+
+        @Override
+        public String toString() {
+            return String.format("%d jars on %d threads in %.2fs, lower bound %.2fs (%.0f%%), longest jar %.2fs, %d steals",
+                    jars, threads, makespanSeconds, lowerBoundSeconds,
+                    makespanSeconds > 0 ? lowerBoundSeconds * 100 / makespanSeconds : 100,
+                    longestSeconds, steals);
+        }
+    }
+
+    private static final class Job {
+        final int index;
+        final File file;
+        final long cost;
+
+        Job(int index, File file, long cost) {
+            this.index = index;
+            this.file = file;
+            this.cost = cost;
+        }
+    }
+
+    private final int threads;
+    private long entryCost = 2048;
+    private Report report;
+
+    public ScanScheduler(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param bytes How many bytes of file size one ZIP entry is considered
+     *              to be worth when estimating costs.
+     */
+    public ScanScheduler setEntryCost(long bytes) {
+        entryCost = bytes;
+        return this;
+    }
+
+    /**
+     * @return The timings of the last run.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    public long estimateCost(File file) {
+        long cost = file.length();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            cost += zipFile.size() * entryCost;
+        } catch (IOException e) {
+            // not a ZIP, or a broken one - the size will have to do
+        }
+        return cost;
+    }
+
+    /**
+     * @return The results, in the same order as the files.
+     */
+    public <T> List<T> run(List<File> files, final Function<File, T> analysis) {
+        final List<Job> jobs = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            jobs.add(new Job(i, file, threads > 1 ? estimateCost(file) : 0));
+        }
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override
+            public int compare(Job a, Job b) {
+                return Long.compare(b.cost, a.cost);
+            }
+        });
+
+        final List<ConcurrentLinkedDeque<Job>> queues = new ArrayList<>(threads);
+        final AtomicLong[] remaining = new AtomicLong[threads];
+        long[] planned = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            queues.add(new ConcurrentLinkedDeque<Job>());
+            remaining[i] = new AtomicLong();
+        }
+        for (Job job : jobs) {
+            int target = 0;
+            for (int i = 1; i < threads; i++) {
+                if (planned[i] < planned[target]) {
+                    target = i;
+                }
+            }
+            queues.get(target).addLast(job);
+            planned[target] += job.cost;
+            remaining[target].addAndGet(job.cost);
+        }
+
+        final List<T> results = new ArrayList<>(Collections.<T>nCopies(files.size(), null));
+        final long[] durations = new long[files.size()];
+        final AtomicInteger steals = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>(threads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Job job;
+                    while ((job = next(id, queues, remaining, steals)) != null) {
+                        long time = System.nanoTime();
+                        try {
+                            results.set(job.index, analysis.apply(job.file));
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                        durations[job.index] = System.nanoTime() - time;
+                    }
+                }
+            }, "modalyze-scan-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        for (Thread worker : workers) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long total = 0, longest = 0;
+        for (long d : durations) {
+            total += d;
+            longest = Math.max(longest, d);
+        }
+        report = new Report();
+        report.jars = files.size();
+        report.threads = threads;
+        report.steals = steals.get();
+        report.longestSeconds = longest / 1.0E9;
+        report.lowerBoundSeconds = Math.max((double) total / threads, longest) / 1.0E9;
+        report.makespanSeconds = (System.nanoTime() - start) / 1.0E9;
+
+        return results;
+    }
+
+    private static Job next(int id, List<ConcurrentLinkedDeque<Job>> queues, AtomicLong[] remaining, AtomicInteger steals) {
+        Job job = queues.get(id).pollFirst();
+        if (job != null) {
+            remaining[id].addAndGet(-job.cost);
+            return job;
+        }
+
+        while (true) {
+            int victim = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                if (i != id && !queues.get(i).isEmpty() && (victim < 0 || remaining[i].get() > remaining[victim].get())) {
+                    victim = i;
+                }
+            }
+            if (victim < 0) {
+                return null;
+            }
+
+            job = queues.get(victim).pollLast();
+            if (job != null) {
+                remaining[victim].addAndGet(-job.cost);
+                steals.incrementAndGet();
+                return job;
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import pl.asie.modalyze.mcp.MCPDataManager;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and throughput counters for a scan. Everything on the analysis
+ * path is a LongAdder or a concurrent map update, so instrumented workers do
+ * not contend with each other; the rates are computed by a background
+ * sampler thread.
+ */
+public class ScanStatistics implements ScanStatisticsMBean {
+    public static final String OBJECT_NAME = "pl.asie.modalyze:type=ScanStatistics";
+
+    private final LongAdder filesDiscovered = new LongAdder();
+    private final LongAdder filesQueued = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesAllocated = new LongAdder();
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+    private final MCPDataManager mcp;
+    private final long startTime = System.nanoTime();
+
+    private ScheduledExecutorService sampler;
+    private long lastSampleTime, lastSampleBytes, lastSampleJars;
+    private volatile double bytesPerSecond, jarsPerSecond;
+
+    public ScanStatistics(MCPDataManager mcp) {
+        this.mcp = mcp;
+        this.lastSampleTime = startTime;
+    }
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts refreshing the current rates every interval seconds.
+     *
+     * @param progress If not null, a progress line is printed there on every refresh.
+     */
+    public synchronized void startSampler(int interval, final PrintStream progress) {
+        if (sampler != null) {
+            return;
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Modalyzer statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+                if (progress != null) {
+                    progress.println(getProgressLine());
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopSampler() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    private synchronized void sample() {
+        long time = System.nanoTime();
+        long bytes = bytesRead.sum();
+        long jars = filesCompleted.sum();
+        double seconds = (time - lastSampleTime) / 1.0E9;
+        if (seconds > 0) {
+            bytesPerSecond = (bytes - lastSampleBytes) / seconds;
+            jarsPerSecond = (jars - lastSampleJars) / seconds;
+        }
+        lastSampleTime = time;
+        lastSampleBytes = bytes;
+        lastSampleJars = jars;
+    }
+
+    public String getProgressLine() {
+        String[] current = getInFlightJars();
+        return String.format("[*] %d/%d files done, %.1f jars/s, %.1f MiB/s, MCP %d loads, %.1f MiB resident%s",
+                getFilesCompleted(), getFilesDiscovered(), jarsPerSecond, bytesPerSecond / (1024 * 1024),
+                getMcpLoadedVersionCount(), getMcpResidentBytes() / (1024.0 * 1024),
+                current.length > 0 ? ", slowest: " + current[0] : "");
+    }
+
+    // Hooks called from the scan
+
+    public void fileDiscovered() {
+        filesDiscovered.increment();
+    }
+
+    public void fileQueued() {
+        filesQueued.increment();
+    }
+
+    public void jarStarted(String name) {
+        inFlight.put(name, System.nanoTime());
+    }
+
+    public void jarCompleted(String name) {
+        inFlight.remove(name);
+        filesCompleted.increment();
+    }
+
+    /**
+     * Counts bytes read without going through {@link #countingStream(InputStream)},
+     * such as jars read with random access.
+     */
+    public void bytesRead(long n) {
+        bytesRead.add(n);
+    }
+
+    /**
+     * @return The number of bytes the current thread has allocated so far, or
+     * -1 if the JVM does not keep track.
+     */
+    public static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param since A previous result of threadAllocatedBytes() on this thread.
+     */
+    public void bytesAllocatedSince(long since) {
+        if (since >= 0) {
+            bytesAllocated.add(threadAllocatedBytes() - since);
+        }
+    }
+
+    public InputStream countingStream(InputStream stream) {
+        return new ProxyInputStream(stream) {
+            @Override
+            protected void afterRead(int n) {
+                if (n > 0) {
+                    bytesRead.add(n);
+                }
+            }
+        };
+    }
+
+    // MBean
+
+    @Override
+    public long getFilesDiscovered() {
+        return filesDiscovered.sum();
+    }
+
+    @Override
+    public long getFilesQueued() {
+        return filesQueued.sum();
+    }
+
+    @Override
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesAllocated() {
+        return bytesAllocated.sum();
+    }
+
+    @Override
+    public double getAverageBytesAllocatedPerJar() {
+        long jars = getFilesCompleted();
+        return jars > 0 ? (double) getBytesAllocated() / jars : 0;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public double getJarsPerSecond() {
+        return jarsPerSecond;
+    }
+
+    @Override
+    public double getAverageBytesPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? getBytesRead() * 1000.0 / elapsed : 0;
+    }
+
+    @Override
+    public double getAverageJarsPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? getFilesCompleted() * 1000.0 / elapsed : 0;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public String[] getInFlightJars() {
+        final long now = System.nanoTime();
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(inFlight.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                return Long.compare(e1.getValue(), e2.getValue());
+            }
+        });
+
+        String[] result = new String[entries.size()];
+        for (int i = 0; i < result.length; i++) {
+            Map.Entry<String, Long> entry = entries.get(i);
+            result[i] = String.format("%s (%.1fs)", entry.getKey(), (now - entry.getValue()) / 1.0E9);
+        }
+        return result;
+    }
+
+    @Override
+    public int getMcpVersionCount() {
+        return mcp.getVersions().size();
+    }
+
+    @Override
+    public int getMcpLoadedVersionCount() {
+        return mcp.getLoadedVersionCount();
+    }
+
+    @Override
+    public String getMcpLoadingVersion() {
+        return mcp.getLoadingVersion();
+    }
+
+    @Override
+    public int getMcpResidentMappingCount() {
+        return mcp.getResidentMappingCount();
+    }
+
+    @Override
+    public long getMcpResidentBytes() {
+        return mcp.getResidentBytes();
+    }
+
+    @Override
+    public long getMcpMappingCacheHits() {
+        return mcp.getMappingCacheHits();
+    }
+
+    @Override
+    public long getMcpMappingCacheMisses() {
+        return mcp.getMappingCacheMisses();
+    }
+
+    @Override
+    public double getMcpMappingCacheHitRate() {
+        long hits = getMcpMappingCacheHits();
+        long total = hits + getMcpMappingCacheMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    @Override
+    public long getMcpVerdictCacheHits() {
+        return mcp.getVerdictCache().getHits();
+    }
+
+    @Override
+    public long getMcpVerdictCacheMisses() {
+        return mcp.getVerdictCache().getMisses();
+    }
+}
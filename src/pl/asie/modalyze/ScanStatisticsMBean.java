@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+public interface ScanStatisticsMBean {
+    long getFilesDiscovered();
+    long getFilesQueued();
+    long getFilesCompleted();
+    long getBytesRead();
+    long getBytesAllocated();
+    double getAverageBytesAllocatedPerJar();
+
+    double getBytesPerSecond();
+    double getJarsPerSecond();
+    double getAverageBytesPerSecond();
+    double getAverageJarsPerSecond();
+
+    long getElapsedMillis();
+    String[] getInFlightJars();
+
+    int getMcpVersionCount();
+    int getMcpLoadedVersionCount();
+    String getMcpLoadingVersion();
+    int getMcpResidentMappingCount();
+    long getMcpResidentBytes();
+    long getMcpMappingCacheHits();
+    long getMcpMappingCacheMisses();
+    double getMcpMappingCacheHitRate();
+    long getMcpVerdictCacheHits();
+    long getMcpVerdictCacheMisses();
+}
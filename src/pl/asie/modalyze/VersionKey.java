@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputed sort key for mod version strings. Runs of digits are compared
+ * numerically and everything else lexicographically, so "1.10" sorts after
+ * "1.9" and "r12" after "r9".
+ */
+public final class VersionKey implements Comparable<VersionKey> {
+    private final String version;
+    private final Object[] parts;
+
+    public VersionKey(String version) {
+        this.version = version;
+        this.parts = split(version);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    private static Object[] split(String version) {
+        List<Object> parts = new ArrayList<>();
+        int i = 0;
+        while (i < version.length()) {
+            int start = i;
+            if (Character.isDigit(version.charAt(i))) {
+                while (i < version.length() && Character.isDigit(version.charAt(i))) {
+                    i++;
+                }
+                // strip leading zeroes; longer digit runs are then always larger
+                int nonZero = start;
+                while (nonZero < i - 1 && version.charAt(nonZero) == '0') {
+                    nonZero++;
+                }
+                parts.add(new Numeric(version.substring(nonZero, i)));
+            } else {
+                while (i < version.length() && !Character.isDigit(version.charAt(i))) {
+                    i++;
+                }
+                parts.add(version.substring(start, i));
+            }
+        }
+        return parts.toArray();
+    }
+
+    @Override
+    public int compareTo(VersionKey other) {
+        int len = Math.min(parts.length, other.parts.length);
+        for (int i = 0; i < len; i++) {
+            Object a = parts[i];
+            Object b = other.parts[i];
+            int result;
+            if (a instanceof Numeric && b instanceof Numeric) {
+                result = ((Numeric) a).compareTo((Numeric) b);
+            } else if (a instanceof Numeric) {
+                result = -1;
+            } else if (b instanceof Numeric) {
+                result = 1;
+            } else {
+                result = ((String) a).compareTo((String) b);
+            }
+
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        if (parts.length != other.parts.length) {
+            return parts.length < other.parts.length ? -1 : 1;
+        }
+        return version.compareTo(other.version);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VersionKey && ((VersionKey) o).version.equals(version);
+    }
+
+    @Override
+    public int hashCode() {
+        return version.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return version;
+    }
+
+    private static final class Numeric implements Comparable<Numeric> {
+        private final String digits;
+
+        Numeric(String digits) {
+            this.digits = digits;
+        }
+
+        @Override
+        public int compareTo(Numeric other) {
+            if (digits.length() != other.digits.length()) {
+                return digits.length() < other.digits.length() ? -1 : 1;
+            }
+            return digits.compareTo(other.digits);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.bench;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import pl.asie.modalyze.ModAnalyzer;
+import pl.asie.modalyze.mcp.MCPDataManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Single-jar latency check: analyzes synthetic mods of a few sizes one at a
+ * time, from memory, with heuristic scoring on one thread and on a
+ * fork-join pool, and prints the p50 and p99 latencies of each.
+ */
+public class LatencyBenchmark {
+    private static class Parameters {
+        @Parameter(names = {"--sizes"}, description = "Comma-separated class counts of the mods to time")
+        private String sizes = "20,200,2000";
+
+        @Parameter(names = {"-j", "--jars"}, description = "Number of different mods of each size")
+        private int jars = 8;
+
+        @Parameter(names = {"-n", "--iterations"}, description = "Timed analyses per size and mode")
+        private int iterations = 100;
+
+        @Parameter(names = {"-s", "--seed"}, description = "Random seed")
+        private long seed = 1;
+
+        @Parameter(names = {"--versions"}, description = "Comma-separated Minecraft versions to draw method references from")
+        private String versions = "1.6.4,1.7.10,1.8";
+
+        @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
+        private String mcpPath;
+
+        @Parameter(names = {"--parallelism"}, description = "Threads in the fork-join pool (0 = one per core)")
+        private int parallelism = 0;
+
+        @Parameter(names = {"--max-p99"}, description = "Fail if a fork-join p99 is above this many milliseconds (0 = never)")
+        private double maxP99Millis = 0;
+
+        @Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
+        private boolean help;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Parameters parameters = new Parameters();
+        JCommander jCommander = new JCommander(parameters, args);
+        if (parameters.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+
+        if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
+            MCPDataManager.MCP_DIR = new File(parameters.mcpPath);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parameters.parallelism > 0 ? parameters.parallelism : Runtime.getRuntime().availableProcessors());
+        boolean failed = false;
+        for (String size : parameters.sizes.split(",")) {
+            int classes = Integer.parseInt(size.trim());
+            SyntheticModGenerator generator = new SyntheticModGenerator(ModAnalyzer.MCP)
+                    .setSeed(parameters.seed)
+                    .setClassCount(classes, classes)
+                    .setNestedJarChance(0)
+                    .setMinecraftVersions(Arrays.asList(parameters.versions.split(",")));
+            List<byte[]> mods = new ArrayList<>();
+            long bytes = 0;
+            for (int i = 0; i < parameters.jars; i++) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                generator.generate(i, stream);
+                mods.add(stream.toByteArray());
+                bytes += stream.size();
+            }
+
+            // Warm-up: JIT and MCP mappings
+            time(mods, null, parameters.iterations / 2);
+            time(mods, pool, parameters.iterations / 2);
+
+            long[] serial = time(mods, null, parameters.iterations);
+            long[] forkJoin = time(mods, pool, parameters.iterations);
+            System.out.println(String.format("%d classes (%.0f KiB): serial p50 %.1f ms, p99 %.1f ms; fork-join (%d threads) p50 %.1f ms, p99 %.1f ms",
+                    classes, bytes / 1024.0 / mods.size(),
+                    percentile(serial, 0.5), percentile(serial, 0.99),
+                    pool.getParallelism(), percentile(forkJoin, 0.5), percentile(forkJoin, 0.99)));
+
+            if (parameters.maxP99Millis > 0 && percentile(forkJoin, 0.99) > parameters.maxP99Millis) {
+                System.err.println(String.format("[ERROR] p99 for %d classes above %.1f ms!", classes, parameters.maxP99Millis));
+                failed = true;
+            }
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static long[] time(List<byte[]> mods, ForkJoinPool pool, int iterations) {
+        ModAnalyzer.MCP.setScoringPool(pool);
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long time = System.nanoTime();
+            new ModAnalyzer((File) null).setVersionHeuristics(true).analyze(mods.get(i % mods.size()));
+            times[i] = System.nanoTime() - time;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1.0E6;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.bench;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import pl.asie.modalyze.AnalysisLevel;
+import pl.asie.modalyze.JsonAdapters;
+import pl.asie.modalyze.ModAnalyzer;
+import pl.asie.modalyze.ModMetadata;
+import pl.asie.modalyze.RemoteZip;
+import pl.asie.modalyze.mcp.MCPDataManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remote analysis check: serves mods from a loopback HTTP server with Range
+ * support, analyzes each of them through RemoteZip and from memory, and
+ * exits with a non-zero status if the results differ. Prints how many
+ * requests and bytes the remote analyses took.
+ */
+public class RemoteZipCheck {
+    private static class Parameters {
+        @Parameter(names = {"-d", "--dir"}, description = "Directory of jars to serve (synthetic mods are generated if not given)")
+        private String dir;
+
+        @Parameter(names = {"-n", "--count"}, description = "Number of mod jars to generate")
+        private int count = 50;
+
+        @Parameter(names = {"-s", "--seed"}, description = "Random seed")
+        private long seed = 1;
+
+        @Parameter(names = {"--versions"}, description = "Comma-separated Minecraft versions to draw method references from")
+        private String versions = "1.6.4,1.7.10,1.8";
+
+        @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
+        private String mcpPath;
+
+        @Parameter(names = {"-l", "--level"}, description = "How deep to analyze mods: inventory, annotations or heuristics")
+        private String level = AnalysisLevel.HEURISTICS.getId();
+
+        @Parameter(names = {"--max-requests"}, description = "Fail if a mod takes more than this many requests (0 = never)")
+        private int maxRequests = 0;
+
+        @Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
+        private boolean help;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Parameters parameters = new Parameters();
+        JCommander jCommander = new JCommander(parameters, args);
+        if (parameters.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+
+        AnalysisLevel level = AnalysisLevel.fromId(parameters.level);
+        if (level == null || level == AnalysisLevel.HASH) {
+            // remote analysis never fetches whole files, so it can not hash them
+            System.err.println("[ERROR] Unknown analysis level: " + parameters.level);
+            System.exit(1);
+        }
+
+        if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
+            MCPDataManager.MCP_DIR = new File(parameters.mcpPath);
+        }
+
+        final Map<String, byte[]> mods = new TreeMap<>();
+        if (parameters.dir != null) {
+            File[] files = new File(parameters.dir).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile() && file.getName().endsWith(".jar")) {
+                        mods.put(file.getName(), FileUtils.readFileToByteArray(file));
+                    }
+                }
+            }
+        } else {
+            SyntheticModGenerator generator = new SyntheticModGenerator(ModAnalyzer.MCP)
+                    .setSeed(parameters.seed)
+                    .setMinecraftVersions(Arrays.asList(parameters.versions.split(",")));
+            for (int i = 0; i < parameters.count; i++) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                SyntheticModGenerator.GeneratedMod mod = generator.generate(i, stream);
+                mods.put(mod.filename, stream.toByteArray());
+            }
+        }
+        if (mods.isEmpty()) {
+            System.err.println("[ERROR] No mods found!");
+            System.exit(1);
+        }
+
+        final AtomicInteger served = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                served.incrementAndGet();
+                try {
+                    serve(exchange, mods.get(exchange.getRequestURI().getPath().substring(1)));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        Gson gson = JsonAdapters.register(new GsonBuilder()).create();
+        int matched = 0, maxRequests = 0;
+        long requests = 0, fetched = 0, total = 0;
+        boolean failed = false;
+        try {
+            for (Map.Entry<String, byte[]> mod : mods.entrySet()) {
+                ModMetadata local = new ModAnalyzer((File) null).setLevel(level).setName(mod.getKey()).analyze(mod.getValue());
+                ModMetadata remote = null;
+                URI uri = new URI("http", null, "127.0.0.1", server.getAddress().getPort(), "/" + mod.getKey(), null, null);
+                try (RemoteZip zip = new RemoteZip(uri.toURL())) {
+                    zip.open();
+                    remote = new ModAnalyzer((File) null).setLevel(level).setName(zip.getName()).analyze(zip);
+                    requests += zip.getRequestCount();
+                    maxRequests = Math.max(maxRequests, zip.getRequestCount());
+                    fetched += zip.getBytesFetched();
+                    total += zip.getLength();
+
+                    if (parameters.maxRequests > 0 && zip.getRequestCount() > parameters.maxRequests) {
+                        System.err.println("[ERROR] " + mod.getKey() + " took " + zip.getRequestCount() + " requests!");
+                        failed = true;
+                    }
+                } catch (IOException e) {
+                    System.err.println("[ERROR] Could not read " + uri + ": " + e.getMessage());
+                }
+
+                if (gson.toJson(local).equals(gson.toJson(remote))) {
+                    matched++;
+                } else {
+                    System.err.println("[ERROR] Remote result for " + mod.getKey() + " differs!");
+                    System.err.println("[*] Local:  " + gson.toJson(local));
+                    System.err.println("[*] Remote: " + gson.toJson(remote));
+                    failed = true;
+                }
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        } finally {
+            server.stop(0);
+        }
+
+        System.out.println(String.format("%d/%d remote results match, %.1f requests/mod (max %d, %d served), %.1f%% of bytes fetched",
+                matched, mods.size(), (double) requests / mods.size(), maxRequests, served.get(),
+                total > 0 ? fetched * 100.0 / total : 0));
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Answers a GET like a static file server would: with an ETag, and with
+     * only the requested bytes for a single "Range: bytes=" range, unless an
+     * If-Range validator no longer matches.
+     */
+    private static void serve(HttpExchange exchange, byte[] data) throws IOException {
+        if (data == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        String etag = "\"" + data.length + "-" + Arrays.hashCode(data) + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range == null || !range.startsWith("bytes=") || range.contains(",") || (ifRange != null && !ifRange.equals(etag))) {
+            exchange.sendResponseHeaders(200, data.length);
+            exchange.getResponseBody().write(data);
+            return;
+        }
+
+        String spec = range.substring(6).trim();
+        long start, end;
+        if (spec.startsWith("-")) {
+            start = Math.max(0, data.length - Long.parseLong(spec.substring(1)));
+            end = data.length - 1;
+        } else {
+            int dash = spec.indexOf('-');
+            start = Long.parseLong(spec.substring(0, dash));
+            end = dash + 1 < spec.length() ? Math.min(Long.parseLong(spec.substring(dash + 1)), data.length - 1) : data.length - 1;
+        }
+        if (start > end) {
+            exchange.getResponseHeaders().add("Content-Range", "bytes */" + data.length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        exchange.getResponseBody().write(data, (int) start, (int) (end - start + 1));
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.bench;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import pl.asie.modalyze.ModAnalyzer;
+import pl.asie.modalyze.mcp.MCPDataManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates deterministic synthetic mod jars for performance testing. The
+ * same seed, index and settings always produce byte-identical jars.
+ */
+public class SyntheticModGenerator {
+    public enum Kind {
+        FML_ANNOTATION,
+        CPW_ANNOTATION,
+        FORGE_ANNOTATION,
+        BASEMOD,
+        NESTED
+    }
+
+    public static class GeneratedMod {
+        public final String filename;
+        public final String modid;
+        public final String mcVersion;
+        public final Kind kind;
+
+        GeneratedMod(String filename, String modid, String mcVersion, Kind kind) {
+            this.filename = filename;
+            this.modid = modid;
+            this.mcVersion = mcVersion;
+            this.kind = kind;
+        }
+    }
+
+    // A fixed timestamp, so that output does not depend on the time of generation.
+    private static final long ENTRY_TIME = 1451606400000L;
+
+    private final MCPDataManager mcp;
+    private final Map<String, List<String[]>> methodRefs = new HashMap<>();
+    private long seed = 1;
+    private int minClasses = 10, maxClasses = 200;
+    private int methodsPerClass = 8, callsPerMethod = 12;
+    private double nestedJarChance = 0.1, coremodChance = 0.05;
+    private List<String> minecraftVersions = Arrays.asList("1.7.10");
+
+    public SyntheticModGenerator(MCPDataManager mcp) {
+        this.mcp = mcp;
+    }
+
+    public SyntheticModGenerator setSeed(long s) {
+        seed = s;
+        return this;
+    }
+
+    public SyntheticModGenerator setClassCount(int min, int max) {
+        minClasses = Math.max(1, min);
+        maxClasses = Math.max(minClasses, max);
+        return this;
+    }
+
+    public SyntheticModGenerator setMethodsPerClass(int m) {
+        methodsPerClass = m;
+        return this;
+    }
+
+    public SyntheticModGenerator setCallsPerMethod(int c) {
+        callsPerMethod = c;
+        return this;
+    }
+
+    public SyntheticModGenerator setNestedJarChance(double c) {
+        nestedJarChance = c;
+        return this;
+    }
+
+    public SyntheticModGenerator setCoremodChance(double c) {
+        coremodChance = c;
+        return this;
+    }
+
+    /**
+     * @param versions The Minecraft versions whose MCP mappings method calls
+     *                 are drawn from. Versions without mappings available get
+     *                 made-up net/minecraft calls instead.
+     */
+    public SyntheticModGenerator setMinecraftVersions(List<String> versions) {
+        minecraftVersions = new ArrayList<>(versions);
+        return this;
+    }
+
+    public List<GeneratedMod> generateCorpus(File dir, int count) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        List<GeneratedMod> mods = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            GeneratedMod mod = generate(i, stream);
+            FileUtils.writeByteArrayToFile(new File(dir, mod.filename), stream.toByteArray());
+            mods.add(mod);
+        }
+        return mods;
+    }
+
+    public GeneratedMod generate(int index, ByteArrayOutputStream out) throws IOException {
+        Random random = new Random(seed * 1000003L + index);
+        Kind kind = Kind.values()[random.nextInt(Kind.values().length)];
+        String mcVersion = minecraftVersions.get(random.nextInt(minecraftVersions.size()));
+        String modid = "synth" + index;
+        String filename = modid + "-" + mcVersion + ".jar";
+
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            if (kind == Kind.NESTED) {
+                // A wrapper which only carries the real mod, like some client/server bundles.
+                Kind inner = Kind.values()[random.nextInt(Kind.BASEMOD.ordinal())];
+                ByteArrayOutputStream nested = new ByteArrayOutputStream();
+                try (ZipOutputStream nestedZip = new ZipOutputStream(nested)) {
+                    writeMod(nestedZip, random, inner, modid, mcVersion);
+                }
+                putEntry(zip, modid + "-universal.jar", nested.toByteArray());
+            } else {
+                modid = writeMod(zip, random, kind, modid, mcVersion);
+            }
+        }
+
+        return new GeneratedMod(filename, modid, mcVersion, kind);
+    }
+
+    private String writeMod(ZipOutputStream zip, Random random, Kind kind, String modid, String mcVersion) throws IOException {
+        String pkg = "synth/" + modid + "/";
+        String version = "1." + random.nextInt(20) + "." + random.nextInt(10);
+        boolean coremod = random.nextDouble() < coremodChance;
+
+        String manifest = "Manifest-Version: 1.0\n" + (coremod ? "FMLCorePlugin: " + pkg.replace('/', '.') + "CorePlugin\n" : "");
+        putEntry(zip, "META-INF/MANIFEST.MF", manifest.getBytes(StandardCharsets.UTF_8));
+
+        String mainClass;
+        if (kind == Kind.BASEMOD) {
+            // ModLoader mods are identified by their class name
+            modid = "mod_" + Character.toUpperCase(modid.charAt(0)) + modid.substring(1);
+            mainClass = modid;
+            putEntry(zip, mainClass + ".class", generateClass(random, mainClass,
+                    random.nextBoolean() ? "BaseMod" : "net/minecraft/src/BaseMod", null, null, mcVersion));
+        } else {
+            String annotation = ModAnalyzer.FORGE_MOD_ANNOTATIONS.get(kind.ordinal());
+            mainClass = pkg + "ModMain";
+            putEntry(zip, mainClass + ".class", generateClass(random, mainClass, "java/lang/Object", annotation,
+                    new String[] { modid, version, random.nextBoolean() ? mcVersion : null }, mcVersion));
+
+            String mcmodInfo = generateMcmodInfo(random, modid, version, mcVersion);
+            if (mcmodInfo != null) {
+                putEntry(zip, "mcmod.info", mcmodInfo.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int classes = minClasses + random.nextInt(maxClasses - minClasses + 1);
+        for (int i = 1; i < classes; i++) {
+            String name = pkg + "Class" + i;
+            putEntry(zip, name + ".class", generateClass(random, name, "java/lang/Object", null, null, mcVersion));
+        }
+
+        if (random.nextDouble() < nestedJarChance) {
+            // A bundled library which is not a mod itself
+            ByteArrayOutputStream nested = new ByteArrayOutputStream();
+            try (ZipOutputStream nestedZip = new ZipOutputStream(nested)) {
+                for (int i = 0; i < 1 + random.nextInt(10); i++) {
+                    String name = "synthlib/" + modid + "/Lib" + i;
+                    putEntry(nestedZip, name + ".class", generateClass(random, name, "java/lang/Object", null, null, null));
+                }
+            }
+            putEntry(zip, "META-INF/libraries/" + modid + "-lib.jar", nested.toByteArray());
+        }
+
+        return modid;
+    }
+
+    private String generateMcmodInfo(Random random, String modid, String version, String mcVersion) {
+        String entry = "{\"modid\": \"" + modid + "\", \"name\": \"Synthetic " + modid + "\", \"version\": \"" + version
+                + "\", \"mcversion\": \"" + mcVersion + "\", \"authorList\": [\"Synth\"], \"requiredMods\": [\"Forge\"]";
+        switch (random.nextInt(5)) {
+            case 0:
+                return null;
+            case 1:
+                return "{\"modinfoversion\": 2, \"modList\": [" + entry + "}]}";
+            case 2:
+                return "[" + entry + "}]";
+            case 3:
+                // trailing commas, as found in many real files
+                return "[" + entry + ",},]";
+            case 4:
+            default:
+                // truncated
+                return "[" + entry;
+        }
+    }
+
+    private byte[] generateClass(Random random, String name, String superName, String annotation, String[] modData, String mcVersion) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+
+        if (annotation != null) {
+            AnnotationVisitor av = writer.visitAnnotation(annotation, true);
+            av.visit("modid", modData[0]);
+            av.visit("version", modData[1]);
+            if (modData[2] != null) {
+                av.visit("acceptedMinecraftVersions", "[" + modData[2] + "]");
+            }
+            av.visitEnd();
+        }
+
+        MethodVisitor ctor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        ctor.visitCode();
+        ctor.visitVarInsn(Opcodes.ALOAD, 0);
+        ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        ctor.visitInsn(Opcodes.RETURN);
+        ctor.visitMaxs(1, 1);
+        ctor.visitEnd();
+
+        List<String[]> refs = mcVersion != null ? getMethodRefs(mcVersion) : Collections.<String[]>emptyList();
+        for (int m = 0; m < methodsPerClass; m++) {
+            MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "method" + m, "()V", null, null);
+            mv.visitCode();
+            for (int c = 0; c < callsPerMethod; c++) {
+                // Only ever parsed, never loaded, so the operand stack is not kept valid.
+                if (!refs.isEmpty() && random.nextInt(3) != 0) {
+                    String[] ref = refs.get(random.nextInt(refs.size()));
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, ref[0], ref[1], ref[2], false);
+                } else {
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "synth/Util" + random.nextInt(50), "call" + random.nextInt(100), "()V", false);
+                }
+            }
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(16, 1);
+            mv.visitEnd();
+        }
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return {owner, name, desc} for each method in the version's client mappings, in a stable order.
+     */
+    private List<String[]> getMethodRefs(String mcVersion) {
+        List<String[]> refs = methodRefs.get(mcVersion);
+        if (refs == null) {
+            refs = new ArrayList<>();
+            Set<String> mappings = mcp.getVersions().contains(mcVersion) ? mcp.getMappings(mcVersion, false) : null;
+            if (mappings != null && !mappings.isEmpty()) {
+                List<String> keys = new ArrayList<>(mappings);
+                Collections.sort(keys);
+                for (String key : keys) {
+                    // M:owner/name:desc
+                    int descStart = key.lastIndexOf(':');
+                    int nameStart = key.lastIndexOf('/', descStart);
+                    if (key.startsWith("M:") && descStart > 2 && nameStart > 2) {
+                        refs.add(new String[] { key.substring(2, nameStart), key.substring(nameStart + 1, descStart), key.substring(descStart + 1) });
+                    }
+                }
+            } else {
+                for (int i = 0; i < 500; i++) {
+                    refs.add(new String[] { "net/minecraft/src/Synth" + (i % 50), "func_" + i + "_a", "()V" });
+                }
+            }
+            methodRefs.put(mcVersion, refs);
+        }
+        return refs;
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static class Parameters {
+        @Parameter(names = {"-o", "--output"}, description = "Output directory", required = true)
+        private String output;
+
+        @Parameter(names = {"-n", "--count"}, description = "Number of mod jars to generate")
+        private int count = 100;
+
+        @Parameter(names = {"-s", "--seed"}, description = "Random seed")
+        private long seed = 1;
+
+        @Parameter(names = {"--min-classes"}, description = "Minimum classes per mod")
+        private int minClasses = 10;
+
+        @Parameter(names = {"--max-classes"}, description = "Maximum classes per mod")
+        private int maxClasses = 200;
+
+        @Parameter(names = {"--versions"}, description = "Comma-separated Minecraft versions to draw method references from")
+        private String versions = "1.7.10";
+
+        @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
+        private String mcpPath;
+
+        @Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
+        private boolean help;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Parameters parameters = new Parameters();
+        JCommander jCommander = new JCommander(parameters, args);
+        if (parameters.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+
+        if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
+            MCPDataManager.MCP_DIR = new File(parameters.mcpPath);
+        }
+
+        List<GeneratedMod> mods = new SyntheticModGenerator(ModAnalyzer.MCP)
+                .setSeed(parameters.seed)
+                .setClassCount(parameters.minClasses, parameters.maxClasses)
+                .setMinecraftVersions(Arrays.asList(parameters.versions.split(",")))
+                .generateCorpus(new File(parameters.output), parameters.count);
+        System.err.println("Generated " + mods.size() + " mods in " + parameters.output);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.bench;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
+import pl.asie.modalyze.ModAnalyzer;
+import pl.asie.modalyze.ModMetadata;
+import pl.asie.modalyze.ScanStatistics;
+import pl.asie.modalyze.mcp.MCPDataManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * End-to-end throughput check: analyzes a synthetic corpus and exits with a
+ * non-zero status if jars/s drops below a fixed minimum or regresses too far
+ * from a stored baseline.
+ */
+public class ThroughputBenchmark {
+    private static final String CORPUS_FILE = "corpus.json";
+
+    private static class Parameters {
+        @Parameter(names = {"-d", "--dir"}, description = "Corpus directory (generated if missing or made with other settings)")
+        private String dir = "build/benchmark-corpus";
+
+        @Parameter(names = {"-n", "--count"}, description = "Number of mod jars to generate")
+        private int count = 200;
+
+        @Parameter(names = {"-s", "--seed"}, description = "Random seed")
+        private long seed = 1;
+
+        @Parameter(names = {"--versions"}, description = "Comma-separated Minecraft versions to draw method references from")
+        private String versions = "1.6.4,1.7.10,1.8";
+
+        @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
+        private String mcpPath;
+
+        @Parameter(names = {"-r", "--runs"}, description = "Timed passes over the corpus; the best one counts")
+        private int runs = 3;
+
+        @Parameter(names = {"--min-jars-per-second"}, description = "Fail below this throughput")
+        private double minJarsPerSecond = 0;
+
+        @Parameter(names = {"-b", "--baseline"}, description = "Baseline file to compare against (written if missing)")
+        private String baseline;
+
+        @Parameter(names = {"--max-regression"}, description = "Fail if throughput is this fraction below the baseline")
+        private double maxRegression = 0.2;
+
+        @Parameter(names = {"--update-baseline"}, description = "Overwrite the baseline with this run's result")
+        private boolean updateBaseline;
+
+        @Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
+        private boolean help;
+    }
+
+    /**
+     * Written next to the generated jars, so later runs with the same
+     * settings can reuse them.
+     */
+    private static class Corpus {
+        int count;
+        long seed;
+        String versions;
+        List<SyntheticModGenerator.GeneratedMod> mods;
+    }
+
+    private static class Baseline {
+        double jarsPerSecond;
+        int count;
+        long seed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Parameters parameters = new Parameters();
+        JCommander jCommander = new JCommander(parameters, args);
+        if (parameters.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+
+        if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
+            MCPDataManager.MCP_DIR = new File(parameters.mcpPath);
+        }
+
+        File dir = new File(parameters.dir);
+        List<SyntheticModGenerator.GeneratedMod> mods = loadCorpus(dir, parameters);
+        if (mods == null) {
+            mods = new SyntheticModGenerator(ModAnalyzer.MCP)
+                    .setSeed(parameters.seed)
+                    .setMinecraftVersions(Arrays.asList(parameters.versions.split(",")))
+                    .generateCorpus(dir, parameters.count);
+
+            Corpus corpus = new Corpus();
+            corpus.count = parameters.count;
+            corpus.seed = parameters.seed;
+            corpus.versions = parameters.versions;
+            corpus.mods = mods;
+            FileUtils.writeStringToFile(new File(dir, CORPUS_FILE), new Gson().toJson(corpus), StandardCharsets.UTF_8);
+        } else {
+            System.err.println("[*] Reusing corpus in " + dir);
+        }
+
+        // Warm-up pass: JIT, page cache and MCP mappings
+        int identified = analyzeCorpus(dir, mods);
+        double best = 0;
+        for (int i = 0; i < parameters.runs; i++) {
+            long allocated = ScanStatistics.threadAllocatedBytes();
+            long time = System.nanoTime();
+            analyzeCorpus(dir, mods);
+            double jarsPerSecond = mods.size() / ((System.nanoTime() - time) / 1.0E9);
+            if (allocated >= 0) {
+                allocated = (ScanStatistics.threadAllocatedBytes() - allocated) / mods.size();
+                System.err.println(String.format("[*] Run %d: %.1f jars/s, %.1f KiB allocated/jar", i + 1, jarsPerSecond, allocated / 1024.0));
+            } else {
+                System.err.println(String.format("[*] Run %d: %.1f jars/s", i + 1, jarsPerSecond));
+            }
+            best = Math.max(best, jarsPerSecond);
+        }
+        System.out.println(String.format("%.1f jars/s (best of %d), %d/%d mod IDs identified", best, parameters.runs, identified, mods.size()));
+
+        boolean failed = false;
+        if (best < parameters.minJarsPerSecond) {
+            System.err.println(String.format("[ERROR] Throughput below minimum of %.1f jars/s!", parameters.minJarsPerSecond));
+            failed = true;
+        }
+
+        if (parameters.baseline != null) {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            File baselineFile = new File(parameters.baseline);
+            if (baselineFile.exists() && !parameters.updateBaseline) {
+                Baseline baseline = gson.fromJson(FileUtils.readFileToString(baselineFile, StandardCharsets.UTF_8), Baseline.class);
+                if (baseline.count != parameters.count || baseline.seed != parameters.seed) {
+                    System.err.println("[WARN] Baseline was recorded with a different corpus!");
+                }
+                double limit = baseline.jarsPerSecond * (1 - parameters.maxRegression);
+                if (best < limit) {
+                    System.err.println(String.format("[ERROR] Throughput regressed: %.1f jars/s, baseline %.1f jars/s, limit %.1f jars/s",
+                            best, baseline.jarsPerSecond, limit));
+                    failed = true;
+                }
+            } else {
+                Baseline baseline = new Baseline();
+                baseline.jarsPerSecond = best;
+                baseline.count = parameters.count;
+                baseline.seed = parameters.seed;
+                FileUtils.writeStringToFile(baselineFile, gson.toJson(baseline), StandardCharsets.UTF_8);
+            }
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static List<SyntheticModGenerator.GeneratedMod> loadCorpus(File dir, Parameters parameters) throws IOException {
+        File file = new File(dir, CORPUS_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Corpus corpus = new Gson().fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Corpus.class);
+        if (corpus == null || corpus.mods == null || corpus.count != parameters.count || corpus.seed != parameters.seed
+                || !parameters.versions.equals(corpus.versions)) {
+            return null;
+        }
+        for (SyntheticModGenerator.GeneratedMod mod : corpus.mods) {
+            if (!new File(dir, mod.filename).isFile()) {
+                return null;
+            }
+        }
+        return corpus.mods;
+    }
+
+    private static int analyzeCorpus(File dir, List<SyntheticModGenerator.GeneratedMod> mods) {
+        int identified = 0;
+        for (SyntheticModGenerator.GeneratedMod mod : mods) {
+            ModMetadata metadata = new ModAnalyzer(new File(dir, mod.filename)).setVersionHeuristics(true).analyze();
+            if (metadata != null && mod.modid.equals(metadata.modid)) {
+                identified++;
+            }
+        }
+        return identified;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.jfr;
+
+/**
+ * Java Flight Recorder events for the phases of analysis, shown under
+ * "Modalyze" in JDK Mission Control. On a JVM without JFR (Java 8 before
+ * 8u262) this instance does nothing; otherwise the events are only filled
+ * in and committed while a recording has them enabled.
+ *
+ * Each begin method returns a token for the matching end method, which
+ * takes the event's fields.
+ */
+public class AnalysisEvents {
+    private static final AnalysisEvents INSTANCE = create();
+
+    AnalysisEvents() {
+
+    }
+
+    public static AnalysisEvents get() {
+        return INSTANCE;
+    }
+
+    private static AnalysisEvents create() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (AnalysisEvents) Class.forName("pl.asie.modalyze.jfr.JfrAnalysisEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new AnalysisEvents();
+        }
+    }
+
+    public Object beginJar() {
+        return null;
+    }
+
+    /**
+     * @param size The size of the jar file, or -1 if it was not read from one.
+     * @param versions The Minecraft versions picked by the heuristics, or null.
+     */
+    public void endJar(Object token, String file, long size, long inflatedBytes, int classes, String modid, String versions) {
+
+    }
+
+    public Object beginNestedArchive() {
+        return null;
+    }
+
+    public void endNestedArchive(Object token, String file, String entry, int depth, long inflatedBytes, int classes, String modid) {
+
+    }
+
+    public Object beginClassBatch() {
+        return null;
+    }
+
+    public void endClassBatch(Object token, String file, int classes, long bytes, int keys) {
+
+    }
+
+    public Object beginMcmodInfo() {
+        return null;
+    }
+
+    public void endMcmodInfo(Object token, String file, long bytes, int entries) {
+
+    }
+
+    public Object beginMappingLoad() {
+        return null;
+    }
+
+    /**
+     * @param cached Whether the mappings came from .map files rather than the MCP ZIP.
+     */
+    public void endMappingLoad(Object token, String version, boolean cached, int clientKeys, int serverKeys, long bytes) {
+
+    }
+
+    public Object beginScoring() {
+        return null;
+    }
+
+    public void endScoring(Object token, String file, long keys, int matchedKeys, String versions) {
+
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * The JFR-backed AnalysisEvents; only loaded once jdk.jfr is known to exist.
+ */
+final class JfrAnalysisEvents extends AnalysisEvents {
+    @Name("pl.asie.modalyze.JarAnalysis")
+    @Label("Jar Analysis")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class JarEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Inflated Bytes")
+        @DataAmount
+        long inflatedBytes;
+        @Label("Classes")
+        int classes;
+        @Label("Mod ID")
+        String modid;
+        @Label("Versions")
+        String versions;
+    }
+
+    @Name("pl.asie.modalyze.NestedArchive")
+    @Label("Nested Archive Analysis")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class NestedArchiveEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Entry")
+        String entry;
+        @Label("Depth")
+        int depth;
+        @Label("Inflated Bytes")
+        @DataAmount
+        long inflatedBytes;
+        @Label("Classes")
+        int classes;
+        @Label("Mod ID")
+        String modid;
+    }
+
+    @Name("pl.asie.modalyze.ClassBatch")
+    @Label("Class Batch")
+    @Description("A batch of classes of a large jar parsed on a class executor thread")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class ClassBatchEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Classes")
+        int classes;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Keys")
+        int keys;
+    }
+
+    @Name("pl.asie.modalyze.McmodInfo")
+    @Label("mcmod.info Parsing")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class McmodInfoEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Entries")
+        int entries;
+    }
+
+    @Name("pl.asie.modalyze.MappingLoad")
+    @Label("MCP Mapping Load")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class MappingLoadEvent extends Event {
+        @Label("Version")
+        String version;
+        @Label("From Cache")
+        boolean cached;
+        @Label("Client Keys")
+        int clientKeys;
+        @Label("Server Keys")
+        int serverKeys;
+        @Label("Estimated Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("pl.asie.modalyze.HeuristicScoring")
+    @Label("Heuristic Scoring")
+    @Category("Modalyze")
+    @StackTrace(false)
+    static final class ScoringEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Keys")
+        long keys;
+        @Label("Matched Keys")
+        int matchedKeys;
+        @Label("Versions")
+        String versions;
+    }
+
+    public JfrAnalysisEvents() {
+
+    }
+
+    private static <T extends Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginJar() {
+        return begin(new JarEvent());
+    }
+
+    @Override
+    public void endJar(Object token, String file, long size, long inflatedBytes, int classes, String modid, String versions) {
+        JarEvent event = (JarEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.size = size;
+            event.inflatedBytes = inflatedBytes;
+            event.classes = classes;
+            event.modid = modid;
+            event.versions = versions;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginNestedArchive() {
+        return begin(new NestedArchiveEvent());
+    }
+
+    @Override
+    public void endNestedArchive(Object token, String file, String entry, int depth, long inflatedBytes, int classes, String modid) {
+        NestedArchiveEvent event = (NestedArchiveEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.entry = entry;
+            event.depth = depth;
+            event.inflatedBytes = inflatedBytes;
+            event.classes = classes;
+            event.modid = modid;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginClassBatch() {
+        return begin(new ClassBatchEvent());
+    }
+
+    @Override
+    public void endClassBatch(Object token, String file, int classes, long bytes, int keys) {
+        ClassBatchEvent event = (ClassBatchEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.classes = classes;
+            event.bytes = bytes;
+            event.keys = keys;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginMcmodInfo() {
+        return begin(new McmodInfoEvent());
+    }
+
+    @Override
+    public void endMcmodInfo(Object token, String file, long bytes, int entries) {
+        McmodInfoEvent event = (McmodInfoEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.bytes = bytes;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginMappingLoad() {
+        return begin(new MappingLoadEvent());
+    }
+
+    @Override
+    public void endMappingLoad(Object token, String version, boolean cached, int clientKeys, int serverKeys, long bytes) {
+        MappingLoadEvent event = (MappingLoadEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.version = version;
+            event.cached = cached;
+            event.clientKeys = clientKeys;
+            event.serverKeys = serverKeys;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginScoring() {
+        return begin(new ScoringEvent());
+    }
+
+    @Override
+    public void endScoring(Object token, String file, long keys, int matchedKeys, String versions) {
+        ScoringEvent event = (ScoringEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.keys = keys;
+            event.matchedKeys = matchedKeys;
+            event.versions = versions;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Gathers a jar's heuristic keys as they are found, keeping only a 64-bit
+ * hash of each distinct key (and of its 1.5/1.6 form) instead of the keys
+ * themselves, and scores them once the version hints are known: against
+ * the versions the hints allow first, and against all of them only if that
+ * result is ambiguous, like MCPDataManager.getVersionsForKeySet(keys, hints).
+ * No mappings are loaded or looked up before getVersions(), so jars which
+ * need no heuristics never pay for them.
+ *
+ * Verdicts go through the manager's verdict cache, and are the same as
+ * getVersionsForKeySet()'s, barring a 64-bit hash collision.
+ *
+ * With a scoring pool set, large key sets are scored against each set of
+ * mappings in slices on the pool.
+ *
+ * Not thread-safe; each jar gets its own.
+ */
+public class KeyScorer {
+    // same as in MCPDataManager.scoreVersions()
+    private static final Pattern PACKAGE_15X = Pattern.compile("net/minecraft/([a-z/]+)/([A-Z])");
+
+    private final MCPDataManager manager;
+    // open-addressed by hash, 0 marks free slots; hashes15x[i] belongs to hashes[i]
+    private long[] hashes = new long[64], hashes15x = new long[64];
+    private int size;
+    private long keyCount;
+    private boolean[] matched;
+
+    /**
+     * Counts the keys in a slice whose hashes are in a set of mappings,
+     * splitting it up until slices are at most partition keys long. Slices
+     * never overlap, so tasks only set their own keys' matched flags.
+     */
+    private static final class CountTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] keys;
+        private final MappingTable.Side mappings;
+        private final boolean[] matched;
+        private final int from, to, partition;
+
+        CountTask(long[] keys, MappingTable.Side mappings, boolean[] matched, int from, int to, int partition) {
+            this.keys = keys;
+            this.mappings = mappings;
+            this.matched = matched;
+            this.from = from;
+            this.to = to;
+            this.partition = partition;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > partition) {
+                int middle = (from + to) >>> 1;
+                CountTask second = new CountTask(keys, mappings, matched, middle, to, partition);
+                second.fork();
+                return new CountTask(keys, mappings, matched, from, middle, partition).compute() + second.join();
+            }
+            return countMatches(keys, mappings, matched, from, to);
+        }
+    }
+
+    public KeyScorer(MCPDataManager manager) {
+        this.manager = manager;
+    }
+
+    public void add(String key) {
+        keyCount++;
+        long hash = MappingTable.hash(key);
+        int mask = hashes.length - 1;
+        int i = slot(hash, mask);
+        while (hashes[i] != 0) {
+            if (hashes[i] == hash) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        hashes[i] = hash;
+        hashes15x[i] = key.contains("net/minecraft/") ? MappingTable.hash(to15x(key)) : hash;
+        if (++size * 2 > hashes.length) {
+            grow();
+        }
+    }
+
+    /**
+     * @return How many keys were added, counting repeats.
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * @return How many distinct keys matched some version's mappings, or -1
+     * if none were scored (as the verdict was cached).
+     */
+    public int getMatchedKeyCount() {
+        if (matched == null) {
+            return -1;
+        }
+
+        int count = 0;
+        for (boolean b : matched) {
+            if (b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @see MCPDataManager#getVersionsForKeySet(Set, VersionHints)
+     */
+    public Set<String> getVersions(VersionHints hints) {
+        // pack the keys, keeping each next to its 1.5/1.6 form
+        final long[] keys = new long[size], keys15x = new long[size];
+        int j = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0) {
+                keys[j] = hashes[i];
+                keys15x[j++] = hashes15x[i];
+            }
+        }
+
+        final Set<String> candidates = hints.resolve(new ArrayList<>(manager.getVersions()));
+        if (candidates == null || candidates.size() >= manager.getVersions().size()) {
+            return getAllVersions(keys, keys15x);
+        }
+
+        return manager.getVerdictCache().get(VerdictCache.fingerprint(keys.clone(), candidates), new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                Map<String, Integer> versions = score(keys, keys15x, candidates);
+                Set<String> versionSet = manager.getBestVersions(versions);
+                return manager.isUnambiguous(versions, versionSet) ? versionSet : getAllVersions(keys, keys15x);
+            }
+        });
+    }
+
+    private Set<String> getAllVersions(final long[] keys, final long[] keys15x) {
+        return manager.getVerdictCache().get(VerdictCache.fingerprint(keys.clone(), null), new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                Set<String> versionSet = manager.getBestVersions(score(keys, keys15x, manager.getVersions()));
+                return versionSet.size() < manager.getVersions().size() ? versionSet : null;
+            }
+        });
+    }
+
+    /**
+     * Scores the keys against the given versions, one at a time, so that
+     * each version's mappings are only fetched once even if they do not all
+     * fit in the memory budget.
+     */
+    private Map<String, Integer> score(long[] keys, long[] keys15x, Collection<String> candidates) {
+        if (matched == null) {
+            matched = new boolean[keys.length];
+        }
+
+        // Keeps both sides of a version next to each other, as they are loaded together.
+        Map<String, Integer> versions = new LinkedHashMap<>();
+        for (String s : manager.residentFirst(candidates)) {
+            versions.put(s + "-client", 0);
+            versions.put(s + "-server", 0);
+        }
+
+        for (String v : versions.keySet()) {
+            long[] versionKeys = v.startsWith("1.5") || v.startsWith("1.6") ? keys15x : keys;
+            versions.put(v, count(versionKeys, manager.getSide(v)));
+        }
+        return versions;
+    }
+
+    private int count(long[] keys, MappingTable.Side mappings) {
+        if (mappings == null) {
+            return 0;
+        }
+
+        ForkJoinPool pool = manager.getScoringPool();
+        int threshold = manager.getParallelScoringThreshold();
+        if (pool != null && keys.length >= threshold) {
+            int partition = Math.max(threshold / 2, keys.length / (pool.getParallelism() * 4));
+            return pool.invoke(new CountTask(keys, mappings, matched, 0, keys.length, partition));
+        }
+        return countMatches(keys, mappings, matched, 0, keys.length);
+    }
+
+    private static int countMatches(long[] keys, MappingTable.Side mappings, boolean[] matched, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (mappings.containsHash(keys[i])) {
+                count++;
+                matched[i] = true;
+            }
+        }
+        return count;
+    }
+
+    private static String to15x(String key) {
+        return PACKAGE_15X.matcher(key).replaceAll("net/minecraft/src/$2");
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes, oldHashes15x = hashes15x;
+        hashes = new long[oldHashes.length * 2];
+        hashes15x = new long[oldHashes.length * 2];
+        int mask = hashes.length - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] != 0) {
+                int i = slot(oldHashes[j], mask);
+                while (hashes[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                hashes[i] = oldHashes[j];
+                hashes15x[i] = oldHashes15x[j];
+            }
+        }
+    }
+
+    private static int slot(long hash, int mask) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return (int) (hash ^ (hash >>> 33)) & mask;
+    }
+}
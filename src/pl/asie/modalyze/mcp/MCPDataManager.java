@@ -16,12 +16,20 @@
 
 package pl.asie.modalyze.mcp;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import pl.asie.modalyze.jfr.AnalysisEvents;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -36,9 +44,21 @@ public class MCPDataManager {
         }
     }
 
-    private static final Map<String, MCPVersion> MCP_VERSION_MAP = new HashMap<>();
+    // Kept in release order; VersionHints relies on it for version ranges.
+    private static final Map<String, MCPVersion> MCP_VERSION_MAP = new LinkedHashMap<>();
     public static File MCP_DIR = new File("./mcp/");
-    private final Map<String, Set<String>> MAPPINGS = new HashMap<>();
+    // Access-ordered, so that the least recently used mappings are evicted first.
+    private final Map<String, MappingTable.Side> MAPPINGS = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> MAPPING_SIZES = new HashMap<>();
+    private long memoryBudget;
+    private volatile long residentBytes;
+    private volatile int residentMappings;
+    private final AtomicInteger loadedVersions = new AtomicInteger();
+    private final AtomicLong mappingCacheHits = new AtomicLong(), mappingCacheMisses = new AtomicLong();
+    private volatile String loadingVersion;
+    private final VerdictCache verdicts = new VerdictCache(4096);
+    private ForkJoinPool scoringPool;
+    private int parallelScoringThreshold = 2048;
 
     public MCPDataManager() {
 
@@ -49,9 +69,87 @@ public class MCPDataManager {
         return MCP_VERSION_MAP.containsKey(v) ? MCP_VERSION_MAP.get(v).hasSides : (v.startsWith("b") ? true : false);
     }
 
-    public Set<String> getVersionsForKeySet(Set<String> keys) {
-        Map<String, Integer> versions = new HashMap<>();
-        for (String s : MCP_VERSION_MAP.keySet()) {
+    public Set<String> getVersionsForKeySet(final Set<String> keys) {
+        return verdicts.get(VerdictCache.fingerprint(keys, null), new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                return scoreKeySet(keys);
+            }
+        });
+    }
+
+    private Set<String> scoreKeySet(Set<String> keys) {
+        Set<String> versionSet = getBestVersions(scoreVersions(keys, MCP_VERSION_MAP.keySet()));
+        return versionSet.size() < MCP_VERSION_MAP.size() ? versionSet : null;
+    }
+
+    /**
+     * Like getVersionsForKeySet(keys), but only scores (and loads the mappings
+     * of) the versions compatible with the given hints first. The full set of
+     * versions is only tried if that result is ambiguous - no key matched or
+     * more than one Minecraft version is left.
+     */
+    public Set<String> getVersionsForKeySet(final Set<String> keys, VersionHints hints) {
+        final Set<String> candidates = hints.resolve(new ArrayList<>(MCP_VERSION_MAP.keySet()));
+        if (candidates == null || candidates.size() >= MCP_VERSION_MAP.size()) {
+            return getVersionsForKeySet(keys);
+        }
+
+        return verdicts.get(VerdictCache.fingerprint(keys, candidates), new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                return scoreKeySet(keys, candidates);
+            }
+        });
+    }
+
+    private Set<String> scoreKeySet(Set<String> keys, Set<String> candidates) {
+        Map<String, Integer> versions = scoreVersions(keys, candidates);
+        Set<String> versionSet = getBestVersions(versions);
+        return isUnambiguous(versions, versionSet) ? versionSet : getVersionsForKeySet(keys);
+    }
+
+    /**
+     * Picks versions like getVersionsForKeySet(keys, hints), from scores
+     * already computed for every version and side.
+     */
+    public Set<String> getVersionsForScores(Map<String, Integer> scores, VersionHints hints) {
+        Set<String> candidates = hints.resolve(new ArrayList<>(MCP_VERSION_MAP.keySet()));
+        if (candidates != null && candidates.size() < MCP_VERSION_MAP.size()) {
+            Map<String, Integer> versions = new LinkedHashMap<>();
+            for (String s : candidates) {
+                versions.put(s + "-client", scores.get(s + "-client"));
+                versions.put(s + "-server", scores.get(s + "-server"));
+            }
+            Set<String> versionSet = getBestVersions(versions);
+            if (isUnambiguous(versions, versionSet)) {
+                return versionSet;
+            }
+        }
+
+        Set<String> versionSet = getBestVersions(scores);
+        return versionSet.size() < MCP_VERSION_MAP.size() ? versionSet : null;
+    }
+
+    /**
+     * @return Whether some key matched and the best versions are all of the
+     * same Minecraft version.
+     */
+    boolean isUnambiguous(Map<String, Integer> versions, Set<String> versionSet) {
+        if (!versionSet.isEmpty() && versions.get(versionSet.iterator().next()) > 0) {
+            Set<String> mcVersions = new HashSet<>();
+            for (String s : versionSet) {
+                mcVersions.add(s.split("-")[0]);
+            }
+            return mcVersions.size() == 1;
+        }
+        return false;
+    }
+
+    private Map<String, Integer> scoreVersions(Collection<String> keys, Collection<String> candidates) {
+        // Keeps both sides of a version next to each other, as they are loaded together.
+        Map<String, Integer> versions = new LinkedHashMap<>();
+        for (String s : residentFirst(candidates)) {
             versions.put(s + "-client", 0);
             versions.put(s + "-server", 0);
         }
@@ -64,23 +162,103 @@ public class MCPDataManager {
             System.out.println(s);
         } */
 
-        for (String s : keys) {
-            // HACK: No idea why that's needed.
-            String s15x = s.replaceAll("net/minecraft/([a-z/]+)/([A-Z])", "net/minecraft/src/$2");
-            for (String v : versions.keySet()) {
-                Set<String> mappings = getMappings(v);
-                if (v.startsWith("1.5") || v.startsWith("1.6")) {
-                    if (mappings.contains(s15x)) {
-                        versions.put(v, versions.get(v) + 1);
+        List<String> keys15x = null;
+        if (scoringPool != null && keys.size() >= parallelScoringThreshold) {
+            // split into slices for the pool
+            keys = new ArrayList<>(keys);
+        }
+
+        // One version at a time, so that each version's mappings are only
+        // fetched once even if they do not all fit in the memory budget.
+        for (String v : versions.keySet()) {
+            Set<String> mappings = getMappings(v);
+            Collection<String> versionKeys = keys;
+            if (v.startsWith("1.5") || v.startsWith("1.6")) {
+                if (keys15x == null) {
+                    keys15x = new ArrayList<>(keys.size());
+                    for (String s : keys) {
+                        // HACK: No idea why that's needed.
+                        keys15x.add(s.replaceAll("net/minecraft/([a-z/]+)/([A-Z])", "net/minecraft/src/$2"));
                     }
-                } else {
+                }
+                versionKeys = keys15x;
+            }
+
+            versions.put(v, countMatches(versionKeys, mappings));
+        }
+
+        return versions;
+    }
+
+    private int countMatches(Collection<String> keys, Set<String> mappings) {
+        if (scoringPool != null && keys.size() >= parallelScoringThreshold) {
+            List<String> list = keys instanceof List ? (List<String>) keys : new ArrayList<>(keys);
+            int partition = Math.max(parallelScoringThreshold / 2, list.size() / (scoringPool.getParallelism() * 4));
+            return scoringPool.invoke(new CountTask(list, mappings, partition));
+        }
+
+        int count = 0;
+        for (String s : keys) {
+            if (mappings != null && mappings.contains(s)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the keys in a slice of a list which are in a set of mappings,
+     * splitting it up until slices are at most partition keys long.
+     */
+    private static final class CountTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> keys;
+        private final Set<String> mappings;
+        private final int partition;
+
+        CountTask(List<String> keys, Set<String> mappings, int partition) {
+            this.keys = keys;
+            this.mappings = mappings;
+            this.partition = partition;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (keys.size() > partition) {
+                int middle = keys.size() / 2;
+                CountTask second = new CountTask(keys.subList(middle, keys.size()), mappings, partition);
+                second.fork();
+                return new CountTask(keys.subList(0, middle), mappings, partition).compute() + second.join();
+            }
+
+            int count = 0;
+            if (mappings != null) {
+                for (String s : keys) {
                     if (mappings.contains(s)) {
-                        versions.put(v, versions.get(v) + 1);
+                        count++;
                     }
                 }
             }
+            return count;
         }
+    }
+
+    /**
+     * Orders versions whose mappings are in memory first, so that a memory
+     * budget does not make every scoring pass evict what the next one needs.
+     */
+    synchronized List<String> residentFirst(Collection<String> versions) {
+        List<String> resident = new ArrayList<>();
+        List<String> other = new ArrayList<>();
+        for (String s : versions) {
+            (MAPPINGS.containsKey(s + "-client") ? resident : other).add(s);
+        }
+        resident.addAll(other);
+        return resident;
+    }
 
+    Set<String> getBestVersions(Map<String, Integer> versions) {
         Set<String> versionSet = new HashSet<>();
         int maxV = 0;
         /* for (String s : versions.keySet()) {
@@ -98,7 +276,7 @@ public class MCPDataManager {
             }
         }
 
-        return versionSet.size() < MCP_VERSION_MAP.size() ? versionSet : null;
+        return versionSet;
     }
 
     public Set<String> getMappings(String version, boolean server) {
@@ -106,6 +284,14 @@ public class MCPDataManager {
     }
 
     public Set<String> getMappings(String version) {
+        return getSide(version);
+    }
+
+    /**
+     * @return The mappings of a version and side, like getMappings(), or null
+     * if they could not be loaded.
+     */
+    synchronized MappingTable.Side getSide(String version) {
         String target = version;
         if (!MAPPINGS.containsKey(target)) {
             try {
@@ -123,129 +309,233 @@ public class MCPDataManager {
         return MCP_VERSION_MAP.keySet();
     }
 
-    private void loadJoinedSrgMapping(String target, ZipFile file, ZipEntry entry) throws IOException {
-        List<String> lines = IOUtils.readLines(file.getInputStream(entry), "UTF-8");
-        Set<String> mapClient = new HashSet<>();
-        Set<String> mapServer = new HashSet<>();
-
-        if (lines != null) {
-            for (String s : lines) {
-                String[] sp = s.split(" ");
-                if (!s.endsWith("#S")) {
-                    if (s.startsWith("FD:") && sp.length >= 3) {
-                        mapClient.add(MCPUtils.getFieldKey(sp[1]));
-                        mapClient.add(MCPUtils.getFieldKey(sp[2]));
-                    } else if (s.startsWith("MD:") && sp.length >= 5) {
-                        mapClient.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                        mapClient.add(MCPUtils.getMethodKey(sp[3], sp[4]));
-                    }
-                }
+    /**
+     * Lets large key sets be scored on the given pool rather than only on
+     * the analyzing thread, to get results for single jars sooner.
+     */
+    public void setScoringPool(ForkJoinPool pool) {
+        scoringPool = pool;
+    }
 
-                if (!s.endsWith("#C")) {
-                    if (s.startsWith("FD:") && sp.length >= 3) {
-                        mapServer.add(MCPUtils.getFieldKey(sp[1]));
-                        mapServer.add(MCPUtils.getFieldKey(sp[2]));
-                    } else if (s.startsWith("MD:") && sp.length >= 5) {
-                        mapServer.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                        mapServer.add(MCPUtils.getMethodKey(sp[3], sp[4]));
-                    }
-                }
+    public ForkJoinPool getScoringPool() {
+        return scoringPool;
+    }
+
+    /**
+     * @param keys How many keys there must be to score at once for the
+     *             scoring pool to be used; fewer are scored on one thread.
+     */
+    public void setParallelScoringThreshold(int keys) {
+        parallelScoringThreshold = keys;
+    }
+
+    public int getParallelScoringThreshold() {
+        return parallelScoringThreshold;
+    }
+
+    public VerdictCache getVerdictCache() {
+        return verdicts;
+    }
+
+    /**
+     * @return A stamp of the MCP and .map files in MCP_DIR, which changes
+     * whenever the mappings heuristics are scored against might have.
+     */
+    public String getMappingStamp() {
+        StringBuilder builder = new StringBuilder(MCP_DIR.getAbsolutePath());
+        for (Map.Entry<String, MCPVersion> entry : MCP_VERSION_MAP.entrySet()) {
+            for (String name : new String[] { entry.getValue().mcpFile, entry.getKey() + "-client.map", entry.getKey() + "-server.map" }) {
+                File file = new File(MCP_DIR, name);
+                builder.append('\n').append(name).append(':').append(file.length()).append(':').append(file.lastModified());
             }
-        } else {
-            System.err.println("Error loading SRG mapping for " + target);
         }
+        return DigestUtils.sha256Hex(builder.toString()).substring(0, 16);
+    }
 
-        MAPPINGS.put(target + "-client", mapClient);
-        MAPPINGS.put(target + "-server", mapServer);
+    /**
+     * Sets the approximate amount of memory resident mappings may take up, in
+     * bytes; 0 means no limit. Least recently used mappings beyond that are
+     * dropped and reloaded from their .map cache files when needed again.
+     */
+    public synchronized void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        evict();
     }
 
-    private void loadSrgMapping(String target, ZipFile file, ZipEntry entry) throws IOException {
-        List<String> lines = IOUtils.readLines(file.getInputStream(entry), "UTF-8");
-        Set<String> map = new HashSet<>();
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
 
-        if (lines != null) {
-            for (String s : lines) {
-                String[] sp = s.split(" ");
-                if (s.startsWith("FD:") && sp.length >= 3) {
-                    map.add(MCPUtils.getFieldKey(sp[1]));
-                    map.add(MCPUtils.getFieldKey(sp[2]));
-                } else if (s.startsWith("MD:") && sp.length >= 5) {
-                    map.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                    map.add(MCPUtils.getMethodKey(sp[3], sp[4]));
-                }
+    /**
+     * @return The estimated size of all resident mappings, in bytes.
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The number of resident mapping sets (one per version and side).
+     */
+    public int getResidentMappingCount() {
+        return residentMappings;
+    }
+
+    /**
+     * Puts both sides of a version's mappings, each counted as half the
+     * table's size; the table is only freed once both are evicted.
+     */
+    private void putMappings(String version, MappingTable table) {
+        long size = table.estimateSize() / 2;
+        for (int side : new int[] { MappingTable.CLIENT, MappingTable.SERVER }) {
+            String target = version + (side == MappingTable.CLIENT ? "-client" : "-server");
+            Long oldSize = MAPPING_SIZES.put(target, size);
+            MAPPINGS.put(target, table.getSide(side));
+            residentBytes += size - (oldSize != null ? oldSize : 0);
+        }
+        residentMappings = MAPPINGS.size();
+        evict();
+    }
+
+    private void evict() {
+        if (memoryBudget <= 0) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, MappingTable.Side>> iterator = MAPPINGS.entrySet().iterator();
+        while (residentBytes > memoryBudget && iterator.hasNext()) {
+            String target = iterator.next().getKey();
+            // Never drop the version being loaded right now; empty (missing) mappings would not free anything.
+            if ((loadingVersion != null && target.startsWith(loadingVersion + "-")) || MAPPING_SIZES.get(target) == 0) {
+                continue;
             }
-        } else {
-            System.err.println("Error loading SRG mapping for " + target);
+
+            iterator.remove();
+            residentBytes -= MAPPING_SIZES.remove(target);
         }
+        residentMappings = MAPPINGS.size();
+    }
+
+    /**
+     * @return How many times a version's mappings were loaded successfully;
+     * missing or unreadable MCP files are not counted.
+     */
+    public int getLoadedVersionCount() {
+        return loadedVersions.get();
+    }
 
-        MAPPINGS.put(target, map);
+    /**
+     * @return The version whose mappings are being loaded right now, or null.
+     */
+    public String getLoadingVersion() {
+        return loadingVersion;
     }
 
-    private String[] splitCsv(String s) {
-        String[] sp = s.split(",");
-        for (int i = 0; i < sp.length; i++) {
-            sp[i] = sp[i].replace("\"", "");
+    /**
+     * @return How many versions were loaded from the .map cache in MCP_DIR.
+     */
+    public long getMappingCacheHits() {
+        return mappingCacheHits.get();
+    }
+
+    /**
+     * @return How many versions had to be parsed from the MCP ZIP.
+     */
+    public long getMappingCacheMisses() {
+        return mappingCacheMisses.get();
+    }
+
+    private MappingTable loadSrgMapping(ZipFile file, ZipEntry entry, MappingTable table, int sides) throws IOException {
+        try (InputStream stream = file.getInputStream(entry)) {
+            new MappingParser(stream).readSrg(table, sides);
         }
-        return sp;
+        return table;
     }
 
-    private void loadCsvMapping(String target, ZipFile file, ZipEntry fields, ZipEntry methods) throws IOException {
-        List<String> fieldList = IOUtils.readLines(file.getInputStream(fields), "UTF-8");
-        List<String> methodList = IOUtils.readLines(file.getInputStream(methods), "UTF-8");
-        Set<String> mapClient = new HashSet<>();
-        Set<String> mapServer = new HashSet<>();
+    private MappingTable loadCsvMapping(ZipFile file, ZipEntry fields, ZipEntry methods) throws IOException {
+        MappingTable table = new MappingTable();
+        try (InputStream stream = file.getInputStream(fields)) {
+            new MappingParser(stream).readCsv(table, false);
+        }
+        try (InputStream stream = file.getInputStream(methods)) {
+            new MappingParser(stream).readCsv(table, true);
+        }
+        return table;
+    }
 
-        if (fieldList != null && methodList != null) {
-            for (int i = 1; i < fieldList.size(); i++) {
-                String[] sp = splitCsv(fieldList.get(i));
-                if (sp.length == 9) {
-                    Set<String> mapTarget = sp[8].equals("1") ? mapServer : mapClient;
-                    mapTarget.add(MCPUtils.getFieldKey(sp[6] + "/" + sp[2]));
-                }
-            }
-            for (int i = 1; i < methodList.size(); i++) {
-                String[] sp = splitCsv(methodList.get(i));
-                if (sp.length == 9) {
-                    Set<String> mapTarget = sp[8].equals("1") ? mapServer : mapClient;
-                    mapTarget.add(MCPUtils.getMethodKey(sp[6] + "/" + sp[2], sp[4]));
-                }
+    private MappingTable loadMapFiles(File client, File server) throws IOException {
+        MappingTable table = new MappingTable();
+        try (InputStream stream = new FileInputStream(client)) {
+            new MappingParser(stream).readKeys(table, MappingTable.CLIENT);
+        }
+        try (InputStream stream = new FileInputStream(server)) {
+            new MappingParser(stream).readKeys(table, MappingTable.SERVER);
+        }
+        return table;
+    }
+
+    private synchronized void loadMappings(String version) throws IOException {
+        Object event = AnalysisEvents.get().beginMappingLoad();
+        long cacheHits = mappingCacheHits.get();
+        loadingVersion = version;
+        try {
+            if (loadMappingsFromDisk(version)) {
+                loadedVersions.incrementAndGet();
             }
-        } else {
-            System.err.println("Error loading CSV mapping for " + target);
+        } finally {
+            loadingVersion = null;
+            AnalysisEvents.get().endMappingLoad(event, version, mappingCacheHits.get() > cacheHits,
+                    getMappingCount(version + "-client"), getMappingCount(version + "-server"),
+                    getMappingSize(version + "-client") + getMappingSize(version + "-server"));
         }
+    }
+
+    private int getMappingCount(String target) {
+        Set<String> mappings = MAPPINGS.get(target);
+        return mappings != null ? mappings.size() : 0;
+    }
 
-        MAPPINGS.put(target + "-client", mapClient);
-        MAPPINGS.put(target + "-server", mapServer);
+    private long getMappingSize(String target) {
+        Long size = MAPPING_SIZES.get(target);
+        return size != null ? size : 0;
     }
 
-    private void loadMappings(String version) throws IOException {
+    /**
+     * @return Whether any mappings were found; if not, empty ones are put in
+     * their place, so that the version is not tried again.
+     */
+    private boolean loadMappingsFromDisk(String version) throws IOException {
         File mappingClient = new File(MCP_DIR, version + "-client.map");
         File mappingServer = new File(MCP_DIR, version + "-server.map");
         if (mappingClient.exists() && mappingServer.exists()) {
-            MAPPINGS.put(version + "-client", new HashSet<>(FileUtils.readLines(mappingClient, "UTF-8")));
-            MAPPINGS.put(version + "-server", new HashSet<>(FileUtils.readLines(mappingServer, "UTF-8")));
+            mappingCacheHits.incrementAndGet();
+            putMappings(version, loadMapFiles(mappingClient, mappingServer));
+            return true;
         } else {
+            mappingCacheMisses.incrementAndGet();
             File mcpFile = new File(MCP_DIR, MCP_VERSION_MAP.get(version).mcpFile);
             if (mcpFile.exists()) {
-                ZipFile zipFile = new ZipFile(mcpFile);
-                ZipEntry joinedSrgEntry = zipFile.getEntry("conf/joined.srg");
-                if (joinedSrgEntry != null) {
-                    loadJoinedSrgMapping(version, zipFile, joinedSrgEntry);
-                } else {
-                    ZipEntry clientSrgEntry = zipFile.getEntry("conf/client.srg");
-                    ZipEntry serverSrgEntry = zipFile.getEntry("conf/server.srg");
-                    if (clientSrgEntry != null && serverSrgEntry != null) {
-                        loadSrgMapping(version + "-client", zipFile, clientSrgEntry);
-                        loadSrgMapping(version + "-server", zipFile, serverSrgEntry);
+                // new mapping data, so what was scored against the old one no longer holds
+                verdicts.clear();
+                try (ZipFile zipFile = new ZipFile(mcpFile)) {
+                    ZipEntry joinedSrgEntry = zipFile.getEntry("conf/joined.srg");
+                    if (joinedSrgEntry != null) {
+                        putMappings(version, loadSrgMapping(zipFile, joinedSrgEntry, new MappingTable(), MappingTable.BOTH));
                     } else {
-                        ZipEntry csvFields = zipFile.getEntry("conf/fields.csv");
-                        ZipEntry csvMethods = zipFile.getEntry("conf/methods.csv");
-                        if (csvFields != null && csvMethods != null) {
-                            loadCsvMapping(version, zipFile, csvFields, csvMethods);
+                        ZipEntry clientSrgEntry = zipFile.getEntry("conf/client.srg");
+                        ZipEntry serverSrgEntry = zipFile.getEntry("conf/server.srg");
+                        if (clientSrgEntry != null && serverSrgEntry != null) {
+                            MappingTable table = loadSrgMapping(zipFile, clientSrgEntry, new MappingTable(), MappingTable.CLIENT);
+                            putMappings(version, loadSrgMapping(zipFile, serverSrgEntry, table, MappingTable.SERVER));
                         } else {
-                            System.err.println("MCP file for Minecraft " + version + " (" + mcpFile.toString() + ") stored in an unknown format!");
-                            MAPPINGS.put(version + "-client", Collections.EMPTY_SET);
-                            MAPPINGS.put(version + "-server", Collections.EMPTY_SET);
+                            ZipEntry csvFields = zipFile.getEntry("conf/fields.csv");
+                            ZipEntry csvMethods = zipFile.getEntry("conf/methods.csv");
+                            if (csvFields != null && csvMethods != null) {
+                                putMappings(version, loadCsvMapping(zipFile, csvFields, csvMethods));
+                            } else {
+                                System.err.println("MCP file for Minecraft " + version + " (" + mcpFile.toString() + ") stored in an unknown format!");
+                                putMappings(version, new MappingTable());
+                                return false;
+                            }
                         }
                     }
                 }
@@ -257,10 +547,11 @@ public class MCPDataManager {
                 if (MAPPINGS.get(version + "-server") != null) {
                     FileUtils.writeLines(mappingServer, MAPPINGS.get(version + "-server"));
                 }
+                return true;
             } else {
                 System.err.println("MCP file for Minecraft " + version + " (" + mcpFile.toString() + ") not found!");
-                MAPPINGS.put(version + "-client", Collections.EMPTY_SET);
-                MAPPINGS.put(version + "-server", Collections.EMPTY_SET);
+                putMappings(version, new MappingTable());
+                return false;
             }
         }
     }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads MCP mapping files (SRG, CSV and the .map cache) into a
+ * MappingTable line by line. Lines go into one reused buffer and are
+ * tokenized in place, so the only strings made are the keys themselves.
+ *
+ * Tokens are split like String.split() would (trailing empty tokens
+ * dropped), and CSV quotes are dropped wherever they are, so the keys
+ * are the same as those of the old split()-based loaders.
+ *
+ * Not thread-safe; use one per file.
+ */
+public class MappingParser {
+    private static final int MAX_TOKENS = 9;
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position, limit;
+    private boolean skipNewline;
+    private char[] line = new char[256];
+    private int lineLength;
+    private final int[] starts = new int[MAX_TOKENS], ends = new int[MAX_TOKENS];
+    private final StringBuilder key = new StringBuilder(128);
+
+    public MappingParser(InputStream stream) {
+        this.reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an SRG file into the given sides. If those are both, it is taken
+     * to be a joined SRG file, whose lines ending in "#C" or "#S" only go to
+     * the client or server side.
+     */
+    public void readSrg(MappingTable table, int sides) throws IOException {
+        while (nextLine()) {
+            int lineSides = sides;
+            if (sides == MappingTable.BOTH) {
+                if (endsWith('#', 'C')) {
+                    lineSides = MappingTable.CLIENT;
+                } else if (endsWith('#', 'S')) {
+                    lineSides = MappingTable.SERVER;
+                }
+            }
+
+            if (startsWith("FD:")) {
+                if (tokenize(' ') >= 3) {
+                    table.add(fieldKey(1), lineSides);
+                    table.add(fieldKey(2), lineSides);
+                }
+            } else if (startsWith("MD:")) {
+                if (tokenize(' ') >= 5) {
+                    table.add(methodKey(1, 2), lineSides);
+                    table.add(methodKey(3, 4), lineSides);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an MCP fields.csv or methods.csv (searge, name, notch, sig,
+     * notchsig, classname, classnotch, package, side), skipping the header.
+     */
+    public void readCsv(MappingTable table, boolean methods) throws IOException {
+        boolean header = true;
+        while (nextLine()) {
+            if (header) {
+                header = false;
+                continue;
+            }
+
+            if (tokenize(',') == 9) {
+                int side = isOne(8) ? MappingTable.SERVER : MappingTable.CLIENT;
+                key.setLength(0);
+                key.append(methods ? "M:" : "F:");
+                appendUnquoted(6);
+                key.append('/');
+                appendUnquoted(2);
+                if (methods) {
+                    key.append(':');
+                    appendUnquoted(4);
+                }
+                table.add(key.toString(), side);
+            }
+        }
+    }
+
+    /**
+     * Reads a .map cache file, one key per line.
+     */
+    public void readKeys(MappingTable table, int sides) throws IOException {
+        while (nextLine()) {
+            table.add(new String(line, 0, lineLength), sides);
+        }
+    }
+
+    /**
+     * Reads the next line into the line buffer, without its terminator.
+     * Lines end at "\n", "\r" or "\r\n", like BufferedReader's.
+     */
+    private boolean nextLine() throws IOException {
+        lineLength = 0;
+        boolean read = false;
+        while (true) {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return read;
+                }
+            }
+
+            if (skipNewline) {
+                skipNewline = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                    continue;
+                }
+            }
+
+            char[] buffer = this.buffer;
+            int end = position;
+            while (end < limit && buffer[end] != '\n' && buffer[end] != '\r') {
+                end++;
+            }
+            appendToLine(position, end);
+            read |= end > position;
+            if (end < limit) {
+                skipNewline = buffer[end] == '\r';
+                position = end + 1;
+                return true;
+            }
+            position = end;
+        }
+    }
+
+    private void appendToLine(int from, int to) {
+        int length = to - from;
+        if (lineLength + length > line.length) {
+            char[] newLine = new char[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        System.arraycopy(buffer, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    /**
+     * Finds the bounds of the first MAX_TOKENS tokens of the line.
+     *
+     * @return The token count String.split() would give.
+     */
+    private int tokenize(char separator) {
+        int count = 0, lastNonEmpty = -1;
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++) {
+            if (i == lineLength || line[i] == separator) {
+                if (count < MAX_TOKENS) {
+                    starts[count] = start;
+                    ends[count] = i;
+                }
+                if (i > start) {
+                    lastNonEmpty = count;
+                }
+                count++;
+                start = i + 1;
+            }
+        }
+        // an empty line is one empty token
+        return lineLength == 0 ? 1 : lastNonEmpty + 1;
+    }
+
+    private String fieldKey(int token) {
+        key.setLength(0);
+        key.append("F:").append(line, starts[token], ends[token] - starts[token]);
+        return key.toString();
+    }
+
+    private String methodKey(int nameToken, int descToken) {
+        key.setLength(0);
+        key.append("M:").append(line, starts[nameToken], ends[nameToken] - starts[nameToken])
+                .append(':').append(line, starts[descToken], ends[descToken] - starts[descToken]);
+        return key.toString();
+    }
+
+    private void appendUnquoted(int token) {
+        for (int i = starts[token]; i < ends[token]; i++) {
+            if (line[i] != '"') {
+                key.append(line[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the token is "1" once its quotes are dropped.
+     */
+    private boolean isOne(int token) {
+        boolean found = false;
+        for (int i = starts[token]; i < ends[token]; i++) {
+            if (line[i] == '1' && !found) {
+                found = true;
+            } else if (line[i] != '"') {
+                return false;
+            }
+        }
+        return found;
+    }
+
+    private boolean startsWith(String prefix) {
+        if (lineLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWith(char a, char b) {
+        return lineLength >= 2 && line[lineLength - 2] == a && line[lineLength - 1] == b;
+    }
+}
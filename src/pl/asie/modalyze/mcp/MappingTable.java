@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The mapping keys of one version, each stored once with flags telling
+ * which sides have it, in an open-addressed table instead of one HashSet
+ * per side. Most keys are on both sides, so this keeps about half the
+ * strings and none of the hash map nodes; a key takes up about two
+ * slots of 17 bytes, against HashSet's two 48-byte nodes and strings.
+ *
+ * Keys are hashed with hash(), so that they can also be looked up by that
+ * hash alone, without the string.
+ *
+ * Filled in by one thread, then only read; getSide() gives read-only Set
+ * views for the code which scores against one side.
+ */
+public class MappingTable {
+    public static final int CLIENT = 1;
+    public static final int SERVER = 2;
+    public static final int BOTH = CLIENT | SERVER;
+
+    private String[] keys = new String[1024];
+    // compared before the keys, so that probing rarely has to look at other strings
+    private long[] hashes = new long[1024];
+    private byte[] flags = new byte[1024];
+    private int size, clientSize, serverSize;
+    private long stringBytes;
+
+    /**
+     * Adds the key to the given sides; the key is only kept if it is new.
+     */
+    public void add(String key, int sides) {
+        int mask = keys.length - 1;
+        long hash = hash(key);
+        int i = slot(hash, mask);
+        while (keys[i] != null) {
+            if (hashes[i] == hash && keys[i].equals(key)) {
+                addFlags(i, sides);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        hashes[i] = hash;
+        addFlags(i, sides);
+        stringBytes += 40 + 2L * key.length();
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    public boolean contains(Object o, int side) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+
+        int mask = keys.length - 1;
+        long hash = hash((String) o);
+        for (int i = slot(hash, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && keys[i].equals(o)) {
+                return (flags[i] & side) != 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param hash A key's hash(); two keys with the same hash can not be told apart.
+     */
+    public boolean containsHash(long hash, int side) {
+        int mask = keys.length - 1;
+        for (int i = slot(hash, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash) {
+                return (flags[i] & side) != 0;
+            }
+        }
+        return false;
+    }
+
+    public int size(int side) {
+        return side == CLIENT ? clientSize : (side == SERVER ? serverSize : size);
+    }
+
+    /**
+     * A read-only view of the keys on one side.
+     */
+    public final class Side extends AbstractSet<String> {
+        private final int side;
+
+        private Side(int side) {
+            this.side = side;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return MappingTable.this.contains(o, side);
+        }
+
+        public boolean containsHash(long hash) {
+            return MappingTable.this.containsHash(hash, side);
+        }
+
+        @Override
+        public int size() {
+            return MappingTable.this.size(side);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = find(0);
+
+                private int find(int from) {
+                    while (from < keys.length && (keys[from] == null || (flags[from] & side) == 0)) {
+                        from++;
+                    }
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < keys.length;
+                }
+
+                @Override
+                public String next() {
+                    if (next >= keys.length) {
+                        throw new NoSuchElementException();
+                    }
+                    String key = keys[next];
+                    next = find(next + 1);
+                    return key;
+                }
+            };
+        }
+    }
+
+    public Side getSide(int side) {
+        return new Side(side);
+    }
+
+    /**
+     * @return A rough estimate of the memory used, on the high side.
+     */
+    public long estimateSize() {
+        return size == 0 ? 0 : 64 + keys.length * 17L + stringBytes;
+    }
+
+    private void addFlags(int i, int sides) {
+        int added = sides & ~flags[i];
+        if ((added & CLIENT) != 0) {
+            clientSize++;
+        }
+        if ((added & SERVER) != 0) {
+            serverSize++;
+        }
+        flags[i] |= added;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        long[] oldHashes = hashes;
+        byte[] oldFlags = flags;
+        keys = new String[oldKeys.length * 2];
+        hashes = new long[oldHashes.length * 2];
+        flags = new byte[oldFlags.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = slot(oldHashes[j], mask);
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                flags[i] = oldFlags[j];
+            }
+        }
+    }
+
+    /**
+     * @return A 64-bit FNV-1a hash of the key; never 0, so that it can mark
+     * free slots in tables of hashes.
+     */
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int slot(long hash, int mask) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return (int) (hash ^ (hash >>> 33)) & mask;
+    }
+}
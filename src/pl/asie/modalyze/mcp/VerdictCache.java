@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Remembers which versions a set of heuristic keys was matched to, so that
+ * jars with the same key set (such as client and server variants of a mod)
+ * are only scored once. Entries are keyed by a digest of the sorted key
+ * hashes (see MappingTable.hash()) and the candidate versions, and the least recently used ones are dropped once
+ * there are more than maxEntries.
+ *
+ * Saved caches carry a stamp of the mapping files they were computed from
+ * and are ignored on load if the stamp no longer matches.
+ */
+public class VerdictCache {
+    private static final String HEADER = "modalyze-verdicts 2 ";
+    private static final String NO_VERDICT = "-";
+
+    private final int maxEntries;
+    private final Map<String, Set<String>> verdicts;
+    private long hits, misses;
+
+    public VerdictCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.verdicts = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                return size() > VerdictCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param candidates The versions which were scored, or null for all of them.
+     */
+    public static String fingerprint(Collection<String> keys, Collection<String> candidates) {
+        long[] hashes = new long[keys.size()];
+        int i = 0;
+        for (String s : keys) {
+            hashes[i++] = MappingTable.hash(s);
+        }
+        return fingerprint(hashes, candidates);
+    }
+
+    /**
+     * @param hashes The hashes of distinct keys, in any order; sorted in place.
+     * @param candidates The versions which were scored, or null for all of them.
+     */
+    public static String fingerprint(long[] hashes, Collection<String> candidates) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        Arrays.sort(hashes);
+        byte[] bytes = new byte[8];
+        for (long hash : hashes) {
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (hash >>> (i * 8));
+            }
+            digest.update(bytes);
+        }
+
+        digest.update((byte) 0);
+        if (candidates != null) {
+            List<String> sorted = new ArrayList<>(candidates);
+            Collections.sort(sorted);
+            for (String s : sorted) {
+                digest.update(s.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+        } else {
+            digest.update((byte) '*');
+        }
+
+        // 128 bits is plenty to tell key sets apart
+        return Hex.encodeHexString(Arrays.copyOf(digest.digest(), 16));
+    }
+
+    /**
+     * @return The stored verdict for the fingerprint, or else the one computed
+     * by the scorer, which is stored. The scorer runs without holding a lock,
+     * so two threads may end up scoring the same key set.
+     */
+    public Set<String> get(String fingerprint, Supplier<Set<String>> scorer) {
+        synchronized (this) {
+            if (verdicts.containsKey(fingerprint)) {
+                hits++;
+                Set<String> verdict = verdicts.get(fingerprint);
+                return verdict != null ? new HashSet<>(verdict) : null;
+            }
+            misses++;
+        }
+
+        Set<String> verdict = scorer.get();
+        put(fingerprint, verdict);
+        return verdict;
+    }
+
+    public synchronized void put(String fingerprint, Set<String> verdict) {
+        verdicts.put(fingerprint, verdict != null ? Collections.unmodifiableSet(new HashSet<>(verdict)) : null);
+    }
+
+    public synchronized void clear() {
+        verdicts.clear();
+    }
+
+    public synchronized int size() {
+        return verdicts.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Loads verdicts saved with the same mapping stamp; a missing or stale
+     * file is not an error, it just leaves the cache as it is.
+     *
+     * @return Whether anything was loaded.
+     */
+    public synchronized boolean load(File file, String mappingStamp) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER + mappingStamp)) {
+            return false;
+        }
+
+        for (String line : lines.subList(1, lines.size())) {
+            int split = line.indexOf('\t');
+            if (split <= 0) {
+                continue;
+            }
+
+            String value = line.substring(split + 1);
+            Set<String> verdict = null;
+            if (!NO_VERDICT.equals(value)) {
+                verdict = new HashSet<>();
+                if (!value.isEmpty()) {
+                    verdict.addAll(Arrays.asList(value.split(",")));
+                }
+            }
+            put(line.substring(0, split), verdict);
+        }
+        return true;
+    }
+
+    public synchronized void save(File file, String mappingStamp) throws IOException {
+        List<String> lines = new ArrayList<>(verdicts.size() + 1);
+        lines.add(HEADER + mappingStamp);
+        for (Map.Entry<String, Set<String>> entry : verdicts.entrySet()) {
+            String value = NO_VERDICT;
+            if (entry.getValue() != null) {
+                List<String> versions = new ArrayList<>(entry.getValue());
+                Collections.sort(versions);
+                value = String.join(",", versions);
+            }
+            lines.add(entry.getKey() + "\t" + value);
+        }
+        FileUtils.writeLines(file, "UTF-8", lines, "\n");
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rough Minecraft version information found in a mod before heuristics are
+ * run, used to narrow down which MCP versions are worth scoring against.
+ * Each hint allows a set of versions; the candidates are the versions allowed
+ * by all of them.
+ */
+public class VersionHints {
+    private static final Pattern VERSION_PATTERN = Pattern.compile("b?[0-9]+\\.[0-9]+(\\.[0-9]+)?");
+
+    private final List<String> minecraftVersions = new ArrayList<>();
+    private final List<String[]> ranges = new ArrayList<>();
+
+    public VersionHints() {
+
+    }
+
+    public boolean isEmpty() {
+        return minecraftVersions.isEmpty() && ranges.isEmpty();
+    }
+
+    /**
+     * @param version A version string as found in mcmod.info or
+     *                acceptedMinecraftVersions, such as "1.7.10" or "[1.7,1.8)".
+     */
+    public void addMinecraftVersion(String version) {
+        if (version != null) {
+            minecraftVersions.add(version);
+        }
+    }
+
+    public void addForgeModAnnotation(String desc) {
+        switch (desc) {
+            case "Lfml/Mod;":
+                addRange("1.2.3", "1.2.5");
+                break;
+            case "Lcpw/mods/fml/common/Mod;":
+                addRange("1.2.5", "1.7.10");
+                break;
+            case "Lnet/minecraftforge/fml/common/Mod;":
+                addRange("1.8", null);
+                break;
+        }
+    }
+
+    public void addBaseModSuperclass(String superName) {
+        if (superName.endsWith("BaseModMp") || superName.equals("forge/NetworkMod")) {
+            // ModLoaderMP and old Forge networking were gone by 1.3
+            addRange(null, "1.2.5");
+        } else if (superName.endsWith("BaseMod")) {
+            addRange(null, "1.6.4");
+        }
+    }
+
+    /**
+     * Adds all hints found by another instance, such as one filled in by
+     * a different thread.
+     */
+    public void addAll(VersionHints other) {
+        minecraftVersions.addAll(other.minecraftVersions);
+        ranges.addAll(other.ranges);
+    }
+
+    /**
+     * Adds an inclusive version range; null means unbounded.
+     */
+    public void addRange(String from, String to) {
+        ranges.add(new String[] { from, to });
+    }
+
+    /**
+     * @param versions All known versions, in release order.
+     * @return The versions compatible with every hint, or null if there are
+     * no usable hints or they contradict each other.
+     */
+    public Set<String> resolve(List<String> versions) {
+        Set<String> result = null;
+
+        for (String s : minecraftVersions) {
+            Set<String> allowed = new HashSet<>();
+            Matcher matcher = VERSION_PATTERN.matcher(s);
+            while (matcher.find()) {
+                allowed.addAll(match(versions, matcher.group()));
+            }
+            if (!allowed.isEmpty()) {
+                result = intersect(result, allowed);
+            }
+        }
+
+        for (String[] range : ranges) {
+            int from = range[0] != null ? versions.indexOf(range[0]) : 0;
+            int to = range[1] != null ? versions.indexOf(range[1]) : versions.size() - 1;
+            if (from >= 0 && to >= from) {
+                result = intersect(result, new HashSet<>(versions.subList(from, to + 1)));
+            }
+        }
+
+        return result == null || result.isEmpty() ? null : result;
+    }
+
+    private static Set<String> match(List<String> versions, String version) {
+        if (versions.contains(version)) {
+            return Collections.singleton(version);
+        }
+
+        // "1.7" matches 1.7.2 and 1.7.10, "1.4.3" matches 1.4.x
+        String prefix = version.split("\\.").length > 2 ? version.substring(0, version.lastIndexOf('.')) : version;
+        Set<String> result = new HashSet<>();
+        for (String v : versions) {
+            if (v.equals(prefix) || v.startsWith(prefix + ".")) {
+                result.add(v);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> intersect(Set<String> a, Set<String> b) {
+        if (a == null) {
+            return b;
+        }
+        a.retainAll(b);
+        return a;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.similarity;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Builds a MinHash signature of a set of strings (a jar's class names and
+ * heuristic keys), from which the Jaccard similarity of two sets can be
+ * estimated without keeping either.
+ *
+ * One hash is computed per string, not one per signature value: its top
+ * bits pick one of SIZE bins and the minimum of the rest is kept per bin
+ * (one permutation hashing). Bins left empty borrow from the next filled
+ * one, so that small sets still compare well. Only the low 16 bits of each
+ * value end up in the signature, which similarity() corrects for.
+ *
+ * Adding strings takes constant memory however many there are; not
+ * thread-safe.
+ */
+public class MinHash {
+    public static final int SIZE = 128;
+    private static final int EMPTY = Integer.MAX_VALUE;
+    private static final double COLLISION = 1.0 / 65536;
+
+    private final int[] mins = new int[SIZE];
+    private boolean isEmpty = true;
+
+    public MinHash() {
+        Arrays.fill(mins, EMPTY);
+    }
+
+    /**
+     * Adds a string, prefixed with a character telling its kind (class name,
+     * method key...) so that strings of different kinds never count as equal.
+     */
+    public void add(char kind, String s) {
+        long hash = mix(hash(kind, s));
+        int bin = (int) (hash >>> 57);
+        int value = Math.min((int) hash >>> 1, EMPTY - 1);
+        if (value < mins[bin]) {
+            mins[bin] = value;
+        }
+        isEmpty = false;
+    }
+
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * @return The signature, SIZE values of 16 bits each, or null if nothing was added.
+     */
+    public int[] getSignature() {
+        if (isEmpty) {
+            return null;
+        }
+
+        int[] signature = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            int distance = 0;
+            int j = i;
+            while (mins[j] == EMPTY) {
+                j = (j + 1) % SIZE;
+                distance++;
+            }
+            int value = mins[j];
+            if (distance > 0) {
+                value = (int) mix(value + distance * 0x9e3779b97f4a7c15L);
+            }
+            signature[i] = value & 0xFFFF;
+        }
+        return signature;
+    }
+
+    /**
+     * @return The estimated Jaccard similarity of the sets behind two signatures, from 0 to 1.
+     */
+    public static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        // unrelated values still agree in 1 of 65536 cases
+        return Math.max(0, ((double) equal / SIZE - COLLISION) / (1 - COLLISION));
+    }
+
+    public static String encode(int[] signature) {
+        byte[] data = new byte[SIZE * 2];
+        for (int i = 0; i < SIZE; i++) {
+            data[i * 2] = (byte) (signature[i] >> 8);
+            data[i * 2 + 1] = (byte) signature[i];
+        }
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    /**
+     * @return The signature, or null if the string is not one.
+     */
+    public static int[] decode(String s) {
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (data.length != SIZE * 2) {
+            return null;
+        }
+
+        int[] signature = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            signature[i] = ((data[i * 2] & 0xFF) << 8) | (data[i * 2 + 1] & 0xFF);
+        }
+        return signature;
+    }
+
+    private static long hash(char kind, String s) {
+        long hash = (0xcbf29ce484222325L ^ kind) * 0x100000001b3L;
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
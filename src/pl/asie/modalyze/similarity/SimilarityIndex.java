@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.similarity;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Finds mods with similar MinHash signatures without comparing against
+ * every mod indexed: the signature is cut into BANDS bands of ROWS values,
+ * and only mods sharing at least one whole band with the query are
+ * compared (locality-sensitive hashing). Pairs with a similarity of 0.5
+ * come up as candidates about 87% of the time, pairs of 0.8 practically
+ * always, and pairs of 0.2 only rarely.
+ *
+ * Saved as one JSON object per line. Thread-safe.
+ */
+public class SimilarityIndex {
+    private static final int BANDS = 32;
+    private static final int ROWS = MinHash.SIZE / BANDS;
+    private static final Gson GSON = new Gson();
+
+    public static class Entry {
+        /** Where the mod was found, such as its path or URL. */
+        public String id;
+        public String modid, version, minecraft;
+        /** True if minecraft was itself guessed from the index; such entries are not used for guessing. */
+        public Boolean guessed;
+        public String signature;
+        private transient int[] values;
+
+        public Entry() {
+
+        }
+
+        public Entry(String id, String modid, String version, String minecraft, int[] signature) {
+            this.id = id;
+            this.modid = modid;
+            this.version = version;
+            this.minecraft = minecraft;
+            this.signature = MinHash.encode(signature);
+            this.values = signature;
+        }
+    }
+
+    public static class Match {
+        public String id, modid, version, minecraft;
+        public Boolean guessed;
+        public double similarity;
+
+        Match(Entry entry, double similarity) {
+            this.id = entry.id;
+            this.modid = entry.modid;
+            this.version = entry.version;
+            this.minecraft = entry.minecraft;
+            this.guessed = entry.guessed;
+            this.similarity = similarity;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<Map<Long, int[]>> buckets = new ArrayList<>(BANDS);
+
+    public SimilarityIndex() {
+        for (int i = 0; i < BANDS; i++) {
+            buckets.add(new HashMap<Long, int[]>());
+        }
+    }
+
+    /**
+     * Adds a mod; one added before under the same ID is replaced.
+     */
+    public synchronized void add(Entry entry) {
+        if (entry.values == null && (entry.signature == null || (entry.values = MinHash.decode(entry.signature)) == null)) {
+            throw new IllegalArgumentException("Invalid signature for " + entry.id);
+        }
+
+        int index = entries.size();
+        Integer previous = ids.put(entry.id, index);
+        if (previous != null) {
+            // left in its buckets, but skipped
+            entries.set(previous, null);
+        }
+        entries.add(entry);
+
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, int[]> map = buckets.get(band);
+            long key = getBandKey(entry.values, band);
+            int[] bucket = map.get(key);
+            // bucket[0] is the number of indices which follow
+            if (bucket == null) {
+                bucket = new int[2];
+            } else if (bucket[0] + 1 == bucket.length) {
+                bucket = Arrays.copyOf(bucket, bucket.length * 2);
+            }
+            bucket[++bucket[0]] = index;
+            map.put(key, bucket);
+        }
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * @param limit The maximum number of matches to return.
+     * @return The indexed mods at least minSimilarity similar to the given
+     * signature, most similar first.
+     */
+    public synchronized List<Match> query(int[] signature, int limit, double minSimilarity) {
+        Set<Integer> candidates = new HashSet<>();
+        for (int band = 0; band < BANDS; band++) {
+            int[] bucket = buckets.get(band).get(getBandKey(signature, band));
+            if (bucket != null) {
+                for (int i = 1; i <= bucket[0]; i++) {
+                    candidates.add(bucket[i]);
+                }
+            }
+        }
+
+        List<Match> matches = new ArrayList<>();
+        for (int index : candidates) {
+            Entry entry = entries.get(index);
+            if (entry != null) {
+                double similarity = MinHash.similarity(signature, entry.values);
+                if (similarity >= minSimilarity) {
+                    matches.add(new Match(entry, similarity));
+                }
+            }
+        }
+
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                int result = Double.compare(b.similarity, a.similarity);
+                return result != 0 ? result : a.id.compareTo(b.id);
+            }
+        });
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    /**
+     * Guesses a mod's Minecraft version from those of the indexed mods
+     * similar to it, weighted by how similar they are. Mods whose version
+     * was guessed as well are left out, so that guesses do not feed on
+     * each other.
+     *
+     * @return The version (as it would be in the mod's dependencies) with
+     * more than half of the weight, or null if there is none.
+     */
+    public String guessMinecraftVersion(int[] signature, double minSimilarity) {
+        Map<String, Double> weights = new HashMap<>();
+        double total = 0;
+        for (Match match : query(signature, 16, minSimilarity)) {
+            if (match.minecraft != null && !"*".equals(match.minecraft) && match.guessed == null) {
+                Double weight = weights.get(match.minecraft);
+                weights.put(match.minecraft, (weight != null ? weight : 0) + match.similarity);
+                total += match.similarity;
+            }
+        }
+
+        for (Map.Entry<String, Double> entry : weights.entrySet()) {
+            if (entry.getValue() * 2 > total) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the mods saved in a file; a missing file is not an error.
+     */
+    public synchronized void load(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+
+        for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            try {
+                Entry entry = GSON.fromJson(line, Entry.class);
+                if (entry != null && entry.id != null) {
+                    add(entry);
+                }
+            } catch (JsonParseException | IllegalArgumentException e) {
+                // skip damaged lines
+            }
+        }
+    }
+
+    public synchronized void save(File file) throws IOException {
+        List<String> lines = new ArrayList<>(ids.size());
+        for (Entry entry : entries) {
+            if (entry != null) {
+                lines.add(GSON.toJson(entry));
+            }
+        }
+        FileUtils.writeLines(file, "UTF-8", lines, "\n");
+    }
+
+    /**
+     * @return A band's ROWS 16-bit values, packed into one long.
+     */
+    private static long getBandKey(int[] signature, int band) {
+        long key = 0;
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+            key = (key << 16) | signature[i];
+        }
+        return key;
+    }
+}